@@ -193,6 +193,19 @@ public class AutoGrader {
 		privilege.tcb.authorizeDestroy(currentThread);
 	}
 
+	/**
+	 * Notify the autograder that a job of a periodic real-time thread has
+	 * completed. The job, and whether it missed its deadline, are recorded in
+	 * the machine statistics.
+	 * 
+	 * @param thread the real-time thread.
+	 * @param lateness the number of ticks after its deadline the job
+	 * completed; zero or less if it met its deadline.
+	 */
+	public void realTimeJobCompleted(KThread thread, long lateness) {
+		privilege.stats.recordRealTimeJob(lateness);
+	}
+
 	/**
 	 * Notify the autograder that a timer interrupt occurred and was handled by
 	 * software if a timer interrupt handler was installed. Called by the
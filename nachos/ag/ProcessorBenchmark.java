@@ -0,0 +1,60 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * An autograder that measures how fast the simulated processor runs. It runs
+ * the kernel as usual, and when Nachos exits, prints the number of user
+ * instructions executed per second of real time since the first user program
+ * started.
+ *
+ * <p>
+ * To use it, run a long-running user program with
+ * <tt>nachos -- nachos.ag.ProcessorBenchmark -x sort.coff</tt>. Compare runs
+ * with and without processor debug flags (e.g. <tt>-d p</tt>, with output
+ * discarded) to compare the tracing and the fast paths, and runs with
+ * different <tt>Processor.engine</tt> settings to compare the engines.
+ */
+public class ProcessorBenchmark extends AutoGrader {
+	/**
+	 * Register the exit handler that prints the benchmark results.
+	 */
+	void init() {
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+	}
+
+	/**
+	 * Start the clock the first time a user program runs.
+	 */
+	public void runProcessor(Privilege privilege) {
+		super.runProcessor(privilege);
+
+		if (startTime == 0) {
+			startTime = System.nanoTime();
+			startTicks = privilege.stats.userTicks;
+		}
+	}
+
+	private void report() {
+		if (startTime == 0)
+			return;
+
+		long elapsed = System.nanoTime() - startTime;
+		long instructions = (privilege.stats.userTicks - startTicks)
+				/ Stats.UserTick;
+
+		System.out.println("Processor benchmark: " + instructions
+				+ " instructions in " + (elapsed / 1000000) + " ms, "
+				+ (long) (instructions / (elapsed / 1e9))
+				+ " instructions/second");
+	}
+
+	private long startTime = 0;
+
+	private long startTicks;
+}
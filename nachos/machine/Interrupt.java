@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,9 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[16];
+		pendingTimes = new long[pending.length];
+		numPending = 0;
 	}
 
 	/**
@@ -119,6 +119,37 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Called by the idle thread when no other thread is ready to run. Nothing
+	 * can happen until the next pending interrupt occurs, so rather than
+	 * letting the idle thread advance time one <tt>KernelTick</tt> at a time,
+	 * skip simulated time forward to the last tick before that interrupt is
+	 * due. The skipped time is counted in <tt>Stats.idleTicks</tt>. The idle
+	 * thread's next interrupt enable then invokes the interrupt at the same
+	 * time it would have occurred had the idle thread kept spinning.
+	 * 
+	 * <p>
+	 * Time is not skipped when interrupt debugging is enabled, so that the
+	 * trace still shows every tick.
+	 */
+	public void idle() {
+		Lib.assertTrue(enabled);
+
+		if (numPending == 0 || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+
+		// the number of whole idle spins that end before the interrupt is due
+		long skip = (pendingTimes[0] - stats.totalTicks - 1) / Stats.KernelTick
+				* Stats.KernelTick;
+
+		if (skip > 0) {
+			stats.idleTicks += skip;
+			stats.totalTicks += skip;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
@@ -128,7 +159,11 @@ public final class Interrupt {
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		addPending(toOccur);
+
+		// an earlier event shortens the processor's current run-ahead budget
+		if (time < nextDue)
+			nextDue = time;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +186,39 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private void tickUser(int numInstructions) {
+		Lib.assertTrue(numInstructions > 0);
+
+		// keep the per-tick trace exact when it is being printed
+		if (Lib.test(dbgInt)) {
+			for (int i = 0; i < numInstructions; i++)
+				tick(false);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) Stats.UserTick * numInstructions;
+		stats.totalTicks += (long) Stats.UserTick * numInstructions;
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private int instructionsUntilDue() {
+		// single-step so that every tick shows up in the trace
+		if (Lib.test(dbgInt))
+			return 1;
+
+		long ticks = nextDue - privilege.stats.totalTicks;
+		if (ticks <= Stats.UserTick)
+			return 1;
+
+		long instructions = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+		return (int) Math.min(instructions, Integer.MAX_VALUE);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,18 +227,18 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (nextDue > time)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		// the cached time may be stale if a handler switched threads
+		updateNextDue();
+		if (nextDue > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pendingTimes[0] <= time) {
+			PendingInterrupt next = removeFirstPending();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -179,19 +247,120 @@ public final class Interrupt {
 
 			Lib.debug(dbgInt, "  " + next.type);
 
+			boolean wasInHandler = inHandler;
+			inHandler = true;
+
 			next.handler.run();
+
+			inHandler = wasInHandler;
 		}
 
+		updateNextDue();
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	private void updateNextDue() {
+		nextDue = (numPending == 0) ? Long.MAX_VALUE : pendingTimes[0];
+	}
+
+	/**
+	 * Add an interrupt to the pending heap. The heap is ordered by time, and
+	 * then by the order in which the interrupts were scheduled.
+	 * 
+	 * @param toOccur the interrupt to add.
+	 */
+	private void addPending(PendingInterrupt toOccur) {
+		if (numPending == pending.length) {
+			pending = Arrays.copyOf(pending, numPending * 2);
+			pendingTimes = Arrays.copyOf(pendingTimes, numPending * 2);
+		}
+
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(toOccur.time, toOccur.id, pendingTimes[parent],
+					pending[parent].id))
+				break;
+
+			pending[i] = pending[parent];
+			pendingTimes[i] = pendingTimes[parent];
+			i = parent;
+		}
+
+		pending[i] = toOccur;
+		pendingTimes[i] = toOccur.time;
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt.
+	 * 
+	 * @return the interrupt that is due first.
+	 */
+	private PendingInterrupt removeFirstPending() {
+		Lib.assertTrue(numPending > 0);
+
+		PendingInterrupt first = pending[0];
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (numPending > 0) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numPending)
+					break;
+
+				if (child + 1 < numPending
+						&& before(pendingTimes[child + 1], pending[child + 1].id,
+								pendingTimes[child], pending[child].id))
+					child++;
+
+				if (!before(pendingTimes[child], pending[child].id, last.time,
+						last.id))
+					break;
+
+				pending[i] = pending[child];
+				pendingTimes[i] = pendingTimes[child];
+				i = child;
+			}
+
+			pending[i] = last;
+			pendingTimes[i] = last.time;
+		}
+
+		return first;
+	}
+
+	private static boolean before(long time1, long id1, long time2, long id2) {
+		return time1 < time2 || (time1 == time2 && id1 < id2);
+	}
+
+	/**
+	 * Tests whether the current thread is running an interrupt handler. A
+	 * context switch saves and restores this with the rest of the thread's
+	 * state, using <tt>setInHandler()</tt>.
+	 * 
+	 * @return <tt>true</tt> if an interrupt handler is running.
+	 */
+	boolean inHandler() {
+		return inHandler;
+	}
+
+	void setInHandler(boolean inHandler) {
+		this.inHandler = inHandler;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		// the heap is only partially ordered, so sort a copy
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (PendingInterrupt toOccur : sorted) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,7 +368,7 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
 		PendingInterrupt(long time, String type, Runnable handler) {
 			this.time = time;
 			this.type = type;
@@ -207,9 +376,7 @@ public final class Interrupt {
 			this.id = numPendingInterruptsCreated++;
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -238,7 +405,22 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private boolean inHandler = false;
+
+	/**
+	 * The pending interrupts, as a binary heap ordered by time and then by
+	 * <tt>id</tt>, so that interrupts due at the same time occur in the order
+	 * they were scheduled.
+	 */
+	private PendingInterrupt[] pending;
+
+	/** The time of each interrupt in <tt>pending</tt>, for quick comparison. */
+	private long[] pendingTimes;
+
+	private int numPending;
+
+	/** The time of the earliest pending interrupt, cached from pending. */
+	private long nextDue = Long.MAX_VALUE;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +432,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tickUser(int numInstructions) {
+			Interrupt.this.tickUser(numInstructions);
+		}
+
+		public int instructionsUntilDue() {
+			return Interrupt.this.instructionsUntilDue();
+		}
 	}
 }
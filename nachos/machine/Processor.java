@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,10 +47,39 @@ public final class Processor {
 
 		mainMemory = new byte[pageSize * numPhysPages];
 
+		decodedInstructions = new Decoded[mainMemory.length / 4];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("threaded"),
+				"unknown Processor.engine " + engine);
+
+		// select the tracing variants of the memory and translation code once
+		tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
+		// the threaded engine does not trace, so debugging uses the interpreter
+		if (engine.equals("threaded") && !tracing) {
+			blocks = new Block[mainMemory.length / 4];
+			pageVersions = new int[numPhysPages];
+			handlers = createHandlers();
+		}
+		else {
+			blocks = null;
+			pageVersions = null;
+			handlers = null;
+		}
+
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbBuckets = new int[Integer.highestOneBit(tlbSize) * 2];
+			Arrays.fill(tlbBuckets, -1);
+			tlbNext = new int[tlbSize];
 		}
 		else {
 			translations = null;
@@ -91,15 +122,178 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		if (blocks != null)
+			runBlocks(inst);
+
+		while (true) {
+			int budget = privilege.interrupt.instructionsUntilDue();
+			int executed = 0;
+
+			try {
+				while (executed < budget) {
+					inst.run();
+					executed++;
+				}
+			}
+			catch (MipsException e) {
+				raise(e, executed);
+				continue;
+			}
+
+			privilege.interrupt.tickUser(executed);
+		}
+	}
+
+	/**
+	 * The execution loop used when <tt>Processor.engine</tt> is
+	 * <tt>threaded</tt>. Whenever the PC is at the start of a basic block
+	 * that ends before the next interrupt is due, the whole block is executed
+	 * using its pre-bound handlers. Any other instruction (e.g. one in a
+	 * branch delay slot) is run through the interpreter instead. Never
+	 * returns.
+	 * 
+	 * @param inst the interpreter used for instructions outside any block.
+	 */
+	private void runBlocks(Instruction inst) {
 		while (true) {
+			int budget = privilege.interrupt.instructionsUntilDue();
+			executedAhead = 0;
+
 			try {
-				inst.run();
+				while (executedAhead < budget) {
+					Block block = findBlock();
+
+					if (block != null
+							&& block.instructions.length <= budget - executedAhead) {
+						executeBlock(block);
+					}
+					else {
+						inst.run();
+						executedAhead++;
+					}
+				}
 			}
 			catch (MipsException e) {
-				e.handle();
+				raise(e, executedAhead);
+				continue;
+			}
+
+			privilege.interrupt.tickUser(executedAhead);
+		}
+	}
+
+	/**
+	 * Handle an exception raised by a user instruction. The instructions that
+	 * completed before it are accounted for first, so that interrupts fire
+	 * at the same simulated time as when advancing time per instruction.
+	 * 
+	 * @param e the exception raised.
+	 * @param executed the number of instructions completed since the
+	 * simulated time was last advanced.
+	 */
+	private void raise(MipsException e, int executed) {
+		if (executed > 0)
+			privilege.interrupt.tickUser(executed);
+
+		e.handle();
+
+		privilege.interrupt.tick(false);
+	}
+
+	/**
+	 * Return the basic block starting at the current PC, building it if it is
+	 * not cached or if the memory it was built from has changed.
+	 * 
+	 * @return the block starting at the PC, or <tt>null</tt> if the next
+	 * instruction must be run by the interpreter.
+	 * @exception MipsException if the PC cannot be translated.
+	 */
+	private Block findBlock() throws MipsException {
+		int pc = registers[regPC];
+
+		// a block must not start in a branch delay slot
+		if (registers[regNextPC] != pc + 4)
+			return null;
+
+		int paddr = translate(pc, 4, false);
+
+		Block block = blocks[paddr / 4];
+		if (block == null || !block.isCurrent()) {
+			block = buildBlock(paddr);
+			blocks[paddr / 4] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Decode the basic block starting at the specified physical address. A
+	 * block ends after the delay slot of its first branch, after a trapping
+	 * instruction, or at the end of the physical page, since the next virtual
+	 * page need not be mapped to the next physical page.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the new block, or <tt>null</tt> if no block starts here.
+	 */
+	private Block buildBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+		Decoded[] decoded = new Decoded[maxBlockLength];
+		int length = 0;
+
+		for (int addr = paddr; addr < pageEnd && length < maxBlockLength; addr += 4) {
+			Decoded inst = lookupDecoded(addr, Lib.bytesToInt(mainMemory, addr));
+
+			if (Lib.test(Mips.BRANCH, inst.flags)) {
+				// the branch and its delay slot must fit in this block
+				if (addr + 4 >= pageEnd || length + 2 > maxBlockLength)
+					break;
+
+				decoded[length++] = inst;
+				decoded[length++] = lookupDecoded(addr + 4,
+						Lib.bytesToInt(mainMemory, addr + 4));
+				break;
 			}
 
-			privilege.interrupt.tick(false);
+			decoded[length++] = inst;
+
+			if (inst.operation == Mips.SYSCALL
+					|| inst.operation == Mips.UNIMPL
+					|| inst.operation == Mips.INVALID)
+				break;
+		}
+
+		if (length == 0)
+			return null;
+
+		return new Block(paddr, Arrays.copyOf(decoded, length),
+				pageVersions[paddr / pageSize]);
+	}
+
+	/**
+	 * Execute a basic block starting at the current PC. Stops early if an
+	 * instruction raises an exception, or if a store overwrote an instruction
+	 * of this block. Simulated time is not advanced; the instructions
+	 * completed are added to <tt>executedAhead</tt>.
+	 * 
+	 * @param block the block to execute.
+	 * @exception MipsException if an instruction raises an exception.
+	 */
+	private void executeBlock(Block block) throws MipsException {
+		Decoded[] instructions = block.instructions;
+		int first = block.paddr / 4;
+		int executed = 0;
+
+		try {
+			while (executed < instructions.length
+					&& decodedInstructions[first + executed] == instructions[executed]) {
+				Decoded inst = instructions[executed];
+				handlers[inst.operation].execute(inst);
+				executed++;
+			}
+		}
+		finally {
+			executedAhead += executed;
 		}
 	}
 
@@ -213,7 +407,174 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
-		translations[number] = new TranslationEntry(entry);
+		unindexTLBEntry(number);
+
+		TranslationEntry tlbEntry = translations[number];
+		tlbEntry.vpn = entry.vpn;
+		tlbEntry.ppn = entry.ppn;
+		tlbEntry.valid = entry.valid;
+		tlbEntry.readOnly = entry.readOnly;
+		tlbEntry.used = entry.used;
+		tlbEntry.dirty = entry.dirty;
+
+		indexTLBEntry(number);
+	}
+
+	/**
+	 * Return the virtual page number of the specified TLB entry. Unlike
+	 * <tt>readTLBEntry()</tt>, this does not allocate a copy of the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the virtual page number of the entry.
+	 */
+	public int getTLBVpn(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].vpn;
+	}
+
+	/**
+	 * Return the physical page number of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the physical page number of the entry.
+	 */
+	public int getTLBPpn(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].ppn;
+	}
+
+	/**
+	 * Return the flags of the specified TLB entry, as a combination of
+	 * <tt>tlbFlagValid</tt>, <tt>tlbFlagReadOnly</tt>, <tt>tlbFlagUsed</tt>
+	 * and <tt>tlbFlagDirty</tt>.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the flags of the entry.
+	 */
+	public int getTLBFlags(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return tlbFlags(translations[number]);
+	}
+
+	/**
+	 * Copy the flags of every TLB entry into the specified array, indexed by
+	 * TLB entry number. This lets a kernel write back the used and dirty bits
+	 * of the whole TLB without reading each entry.
+	 * 
+	 * @param usedDirtyBits the array to store the flags in, which must have
+	 * at least <tt>getTLBSize()</tt> elements.
+	 */
+	public void syncTLBInto(int[] usedDirtyBits) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(usedDirtyBits.length >= tlbSize);
+
+		for (int i = 0; i < tlbSize; i++)
+			usedDirtyBits[i] = tlbFlags(translations[i]);
+	}
+
+	/**
+	 * Invalidate every entry in the TLB.
+	 */
+	public void invalidateTLB() {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++)
+			translations[i].valid = false;
+
+		Arrays.fill(tlbBuckets, -1);
+	}
+
+	/**
+	 * Invalidate every TLB entry that maps the specified virtual page.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if any entry was invalidated.
+	 */
+	public boolean invalidateTLBEntry(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		int bucket = vpn & (tlbBuckets.length - 1);
+		boolean found = false;
+
+		for (int i = tlbBuckets[bucket]; i != -1;) {
+			int next = tlbNext[i];
+
+			if (translations[i].vpn == vpn) {
+				unindexTLBEntry(i);
+				translations[i].valid = false;
+				found = true;
+			}
+
+			i = next;
+		}
+
+		return found;
+	}
+
+	private static int tlbFlags(TranslationEntry entry) {
+		return (entry.valid ? tlbFlagValid : 0)
+				| (entry.readOnly ? tlbFlagReadOnly : 0)
+				| (entry.used ? tlbFlagUsed : 0)
+				| (entry.dirty ? tlbFlagDirty : 0);
+	}
+
+	/**
+	 * Add a valid TLB entry to the chain of its hash bucket. Chains are kept
+	 * sorted by TLB index, so that if several valid entries map the same
+	 * virtual page, the lowest-numbered one is found first, just as in a
+	 * linear scan.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 */
+	private void indexTLBEntry(int number) {
+		TranslationEntry entry = translations[number];
+		if (!entry.valid)
+			return;
+
+		int bucket = entry.vpn & (tlbBuckets.length - 1);
+
+		int prev = -1, next = tlbBuckets[bucket];
+		while (next != -1 && next < number) {
+			prev = next;
+			next = tlbNext[next];
+		}
+
+		tlbNext[number] = next;
+		if (prev == -1)
+			tlbBuckets[bucket] = number;
+		else
+			tlbNext[prev] = number;
+	}
+
+	/**
+	 * Remove a TLB entry from the chain of its hash bucket, if it is valid.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 */
+	private void unindexTLBEntry(int number) {
+		TranslationEntry entry = translations[number];
+		if (!entry.valid)
+			return;
+
+		int bucket = entry.vpn & (tlbBuckets.length - 1);
+
+		int prev = -1, next = tlbBuckets[bucket];
+		while (next != number) {
+			Lib.assertTrue(next != -1);
+			prev = next;
+			next = tlbNext[next];
+		}
+
+		if (prev == -1)
+			tlbBuckets[bucket] = tlbNext[number];
+		else
+			tlbNext[prev] = tlbNext[number];
 	}
 
 	/**
@@ -230,12 +591,36 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * Code that writes to this array must then call <tt>memoryWritten()</tt>,
+	 * so that the threaded engine does not run instructions decoded from the
+	 * old contents.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
 		return mainMemory;
 	}
 
+	/**
+	 * Note that the kernel wrote <i>length</i> bytes of physical memory
+	 * starting at <i>paddr</i> through <tt>getMemory()</tt>. Basic blocks in
+	 * the pages written are dropped.
+	 * 
+	 * @param paddr the first physical address written.
+	 * @param length the number of bytes written.
+	 */
+	public void memoryWritten(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= mainMemory.length);
+
+		if (pageVersions == null || length == 0)
+			return;
+
+		for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1) / pageSize; ppn++)
+			pageVersions[ppn]++;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -290,15 +675,21 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-					+ (writing ? ", write" : ", read..."));
+		if (tracing)
+			return translateTraced(vaddr, size, writing);
+		else
+			return translateUntraced(vaddr, size, writing);
+	}
 
+	/**
+	 * The variant of <tt>translate()</tt> used when no processor debug flag
+	 * is enabled.
+	 */
+	private int translateUntraced(int vaddr, int size, boolean writing)
+			throws MipsException {
 		// check alignment
-		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
+		if ((vaddr & (size - 1)) != 0)
 			throw new MipsException(exceptionAddressError, vaddr);
-		}
 
 		// calculate virtual page number and offset from the virtual address
 		int vpn = pageFromAddress(vaddr);
@@ -311,46 +702,68 @@ public final class Processor {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
 				throw new MipsException(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the valid TLB entries that hash like vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int bucket = vpn & (tlbBuckets.length - 1);
+			for (int i = tlbBuckets[bucket]; i != -1; i = tlbNext[i]) {
+				if (translations[i].vpn == vpn) {
 					entry = translations[i];
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
-		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
+		if (entry.readOnly && writing)
 			throw new MipsException(exceptionReadOnly, vaddr);
-		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
-		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
+		if (ppn < 0 || ppn >= numPhysPages)
 			throw new MipsException(exceptionBusError, vaddr);
-		}
 
 		// set used and dirty bits as appropriate
 		entry.used = true;
 		if (writing)
 			entry.dirty = true;
 
-		int paddr = (ppn * pageSize) + offset;
+		return (ppn * pageSize) + offset;
+	}
+
+	/**
+	 * The variant of <tt>translate()</tt> used when processor debugging is
+	 * enabled, which traces the translation and the reason it failed, if it
+	 * did.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateTraced(int vaddr, int size, boolean writing)
+			throws MipsException {
+		if (Lib.test(dbgProcessor))
+			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+					+ (writing ? ", write" : ", read..."));
+
+		int paddr;
+		try {
+			paddr = translateUntraced(vaddr, size, writing);
+		}
+		catch (MipsException e) {
+			Lib.debug(dbgProcessor, "\t\t" + translationErrors[e.cause]);
+			throw e;
+		}
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
@@ -367,6 +780,19 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		if (tracing)
+			return readMemTraced(vaddr, size);
+
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		return Lib.bytesToInt(mainMemory, translate(vaddr, size, false), size);
+	}
+
+	/**
+	 * The variant of <tt>readMem()</tt> used when processor debugging is
+	 * enabled, which traces the access and the value read.
+	 */
+	private int readMemTraced(int vaddr, int size) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
@@ -393,14 +819,63 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing && Lib.test(dbgProcessor))
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		decodedInstructions[paddr / 4] = null;
+		if (pageVersions != null)
+			pageVersions[paddr / pageSize]++;
+	}
+
+	/**
+	 * Return the decoded form of the instruction word stored at physical
+	 * address <i>paddr</i>, decoding and caching it if necessary.
+	 * 
+	 * <p>
+	 * The kernel can write physical memory directly through
+	 * <tt>getMemory()</tt>, bypassing <tt>writeMem()</tt>, so a cached entry
+	 * is only reused if it was decoded from the word currently in memory.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word currently stored at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private Decoded lookupDecoded(int paddr, int value) {
+		Decoded decoded = decodedInstructions[paddr / 4];
+
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			decodedInstructions[paddr / 4] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Discard any decoded instructions cached for the specified physical page.
+	 * Called when the contents of the page are replaced wholesale, e.g. by
+	 * <tt>CoffSection.loadPage()</tt>.
+	 * 
+	 * @param ppn the physical page whose contents changed.
+	 */
+	void invalidateDecodedPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		int first = ppn * pageSize / 4;
+		Arrays.fill(decodedInstructions, first, first + pageSize / 4, null);
+
+		if (blocks != null) {
+			Arrays.fill(blocks, first, first + pageSize / 4, null);
+			pageVersions[ppn]++;
+		}
 	}
 
 	/**
@@ -484,6 +959,22 @@ public final class Processor {
 			"page fault   ", "TLB miss     ", "read-only    ", "bus error    ",
 			"address error", "overflow     ", "illegal inst " };
 
+	/** The trace messages for the exceptions raised by translation. */
+	private static final String translationErrors[] = { null, "page fault",
+			"TLB miss", "read-only exception", "bad ppn", "alignment error" };
+
+	/** Set in the flags of a TLB entry that holds a valid translation. */
+	public static final int tlbFlagValid = 0x1;
+
+	/** Set in the flags of a TLB entry that maps a read-only page. */
+	public static final int tlbFlagReadOnly = 0x2;
+
+	/** Set in the flags of a TLB entry whose page has been accessed. */
+	public static final int tlbFlagUsed = 0x4;
+
+	/** Set in the flags of a TLB entry whose page has been written. */
+	public static final int tlbFlagDirty = 0x8;
+
 	/** Index of return value register 0. */
 	public static final int regV0 = 2;
 
@@ -547,9 +1038,24 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/**
+	 * <tt>true</tt> if any processor debug flag is enabled, in which case the
+	 * tracing variants of the memory and translation code are used.
+	 */
+	private final boolean tracing;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/**
+	 * The first valid TLB entry in each hash bucket, or -1. A virtual page
+	 * hashes to the bucket given by its low bits.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next valid TLB entry in the same hash bucket, or -1. */
+	private int[] tlbNext;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -568,6 +1074,41 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Decoded instructions, indexed by physical word address. Entries are
+	 * created lazily by <tt>lookupDecoded()</tt>.
+	 */
+	private Decoded[] decodedInstructions;
+
+	/**
+	 * Basic blocks built by the threaded engine, indexed by the physical word
+	 * address of their first instruction, or <tt>null</tt> if the interpreter
+	 * is in use.
+	 */
+	private Block[] blocks;
+
+	/**
+	 * A counter per physical page, incremented whenever the page is written,
+	 * or <tt>null</tt> if the interpreter is in use. A block is only run if
+	 * its page has not been written since the block was built.
+	 */
+	private int[] pageVersions;
+
+	/**
+	 * The number of instructions the threaded engine has completed since
+	 * simulated time was last advanced.
+	 */
+	private int executedAhead;
+
+	/**
+	 * The handler bound to each <tt>Mips</tt> operation by the threaded
+	 * engine, or <tt>null</tt> if the interpreter is in use.
+	 */
+	private Handler[] handlers;
+
+	/** The maximum number of instructions in a basic block. */
+	private static final int maxBlockLength = 64;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -636,83 +1177,70 @@ public final class Processor {
 		}
 
 		private void fetch() throws MipsException {
+			if (tracing) {
+				fetchTraced();
+				return;
+			}
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+		}
+
+		private void fetchTraced() throws MipsException {
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+		}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+		private void decode() {
+			Decoded decoded = lookupDecoded(paddr, value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
+			size = decoded.size;
 
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
+			dstReg = decoded.dstReg;
 
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -733,7 +1261,8 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (tracing
+					&& (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble)))
 				print();
 		}
 
@@ -1048,7 +1577,8 @@ public final class Processor {
 			if (test(Mips.DST) && dstReg != 0)
 				registers[dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+			if (tracing && (test(Mips.DST) || test(Mips.DELAYEDLOAD))
+					&& dstReg != 0) {
 				if (Lib.test(dbgFullDisassemble)) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
@@ -1062,13 +1592,14 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (tracing
+					&& ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) || Lib
+							.test(dbgFullDisassemble)))
 				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1085,6 +1616,434 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The fields of an instruction word that do not depend on the register
+	 * file, extracted once and cached in <tt>decodedInstructions</tt>.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch targets use the sign-extended immediate
+			int signedImm = Lib.extend(value, 0, 16);
+			branchOffset = signedImm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = signedImm & 0xFFFF;
+			else
+				imm = signedImm;
+
+			unsigned = Lib.test(Mips.UNSIGNED, flags);
+			overflow = Lib.test(Mips.OVERFLOW, flags);
+			src1Shift = Lib.test(Mips.SRC1SH, flags);
+			src2Imm = Lib.test(Mips.SRC2IMM, flags);
+			link = Lib.test(Mips.LINK, flags);
+		}
+
+		/** The instruction word this was decoded from. */
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg, branchOffset;
+
+		final boolean unsigned, overflow, src1Shift, src2Imm, link;
+	}
+
+	/**
+	 * A decoded basic block: a run of instructions in one physical page that
+	 * ends with a branch and its delay slot, or with a trapping instruction.
+	 */
+	private class Block {
+		Block(int paddr, Decoded[] instructions, int version) {
+			this.paddr = paddr;
+			this.instructions = instructions;
+			this.version = version;
+		}
+
+		/**
+		 * Test whether this block still matches physical memory, which is
+		 * the case unless its page was written since it was built.
+		 * 
+		 * @return <tt>true</tt> if this block may be executed.
+		 */
+		boolean isCurrent() {
+			return version == pageVersions[paddr / pageSize];
+		}
+
+		final int paddr;
+
+		final Decoded[] instructions;
+
+		/** The version of the page when this block was built. */
+		final int version;
+	}
+
+	/**
+	 * Executes one instruction of a particular <tt>Mips</tt> operation for the
+	 * threaded engine: reads its operands, performs it, writes back its
+	 * result, and advances the PC, with the same effect as
+	 * <tt>Instruction.run()</tt> after a successful fetch.
+	 */
+	private abstract class Handler {
+		abstract void execute(Decoded inst) throws MipsException;
+	}
+
+	private long src1(Decoded inst) {
+		long src1 = inst.src1Shift ? inst.sh : registers[inst.rs];
+		return inst.unsigned ? src1 & 0xFFFFFFFFL : src1;
+	}
+
+	private long src2(Decoded inst) {
+		long src2 = inst.src2Imm ? inst.imm : registers[inst.rt];
+		return inst.unsigned ? src2 & 0xFFFFFFFFL : src2;
+	}
+
+	/**
+	 * Write back the result of an instruction with a destination register and
+	 * advance to the next instruction.
+	 */
+	private void complete(Decoded inst, long dst) throws MipsException {
+		// if instruction is signed, but carry bit !+ sign bit, throw
+		if (inst.overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+			throw new MipsException(exceptionOverflow);
+
+		finishLoad();
+
+		if (inst.dstReg != 0)
+			registers[inst.dstReg] = (int) dst;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete an instruction without a destination register and advance to
+	 * the next instruction.
+	 */
+	private void complete() {
+		finishLoad();
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Complete a branch or jump, linking if necessary, and advance to the
+	 * branch target if it is taken.
+	 */
+	private void completeBranch(Decoded inst, boolean taken, int jtarget) {
+		int nextPC = registers[regNextPC] + 4;
+
+		finishLoad();
+
+		if (inst.link && inst.dstReg != 0)
+			registers[inst.dstReg] = nextPC;
+
+		advancePC(taken ? jtarget : nextPC);
+	}
+
+	private int branchTarget(Decoded inst) {
+		return registers[regNextPC] + inst.branchOffset;
+	}
+
+	private Handler[] createHandlers() {
+		Handler[] table = new Handler[Mips.MAX + 1];
+
+		Handler illegal = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				throw new MipsException(exceptionIllegalInstruction);
+			}
+		};
+		for (int i = 0; i < table.length; i++)
+			table[i] = illegal;
+
+		table[Mips.UNIMPL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				System.err.println("Warning: encountered unimplemented inst");
+				throw new MipsException(exceptionIllegalInstruction);
+			}
+		};
+		table[Mips.SYSCALL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				throw new MipsException(exceptionSyscall);
+			}
+		};
+
+		table[Mips.ADD] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src1(inst) + src2(inst));
+			}
+		};
+		table[Mips.SUB] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src1(inst) - src2(inst));
+			}
+		};
+		table[Mips.SLL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src2(inst) << (src1(inst) & 0x1F));
+			}
+		};
+		table[Mips.SRA] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src2(inst) >> (src1(inst) & 0x1F));
+			}
+		};
+		table[Mips.SRL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src2(inst) >>> (src1(inst) & 0x1F));
+			}
+		};
+		table[Mips.SLT] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, (src1(inst) < src2(inst)) ? 1 : 0);
+			}
+		};
+		table[Mips.AND] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src1(inst) & src2(inst));
+			}
+		};
+		table[Mips.OR] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src1(inst) | src2(inst));
+			}
+		};
+		table[Mips.NOR] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, ~(src1(inst) | src2(inst)));
+			}
+		};
+		table[Mips.XOR] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, src1(inst) ^ src2(inst));
+			}
+		};
+		table[Mips.LUI] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, inst.imm << 16);
+			}
+		};
+
+		table[Mips.MULT] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				long dst = src1(inst) * src2(inst);
+				registers[regLo] = (int) Lib.extract(dst, 0, 32);
+				registers[regHi] = (int) Lib.extract(dst, 32, 32);
+				complete();
+			}
+		};
+		table[Mips.DIV] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				long src1 = src1(inst), src2 = src2(inst);
+				try {
+					registers[regLo] = (int) (src1 / src2);
+					registers[regHi] = (int) (src1 % src2);
+					if (registers[regLo] * src2 + registers[regHi] != src1)
+						throw new ArithmeticException();
+				}
+				catch (ArithmeticException e) {
+					throw new MipsException(exceptionOverflow);
+				}
+				complete();
+			}
+		};
+		table[Mips.MFLO] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, registers[regLo]);
+			}
+		};
+		table[Mips.MFHI] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				complete(inst, registers[regHi]);
+			}
+		};
+		table[Mips.MTLO] = new Handler() {
+			void execute(Decoded inst) {
+				registers[regLo] = (int) src1(inst);
+				complete();
+			}
+		};
+		table[Mips.MTHI] = new Handler() {
+			void execute(Decoded inst) {
+				registers[regHi] = (int) src1(inst);
+				complete();
+			}
+		};
+
+		table[Mips.JUMP] = new Handler() {
+			void execute(Decoded inst) {
+				int jtarget;
+				if (inst.format == Mips.RFMT)
+					jtarget = registers[inst.rs];
+				else
+					jtarget = (registers[regNextPC] & 0xF0000000)
+							| (inst.target << 2);
+
+				completeBranch(inst, true, jtarget);
+			}
+		};
+		table[Mips.BEQ] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) == src2(inst),
+						branchTarget(inst));
+			}
+		};
+		table[Mips.BNE] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) != src2(inst),
+						branchTarget(inst));
+			}
+		};
+		table[Mips.BGEZ] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) >= 0, branchTarget(inst));
+			}
+		};
+		table[Mips.BGTZ] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) > 0, branchTarget(inst));
+			}
+		};
+		table[Mips.BLEZ] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) <= 0, branchTarget(inst));
+			}
+		};
+		table[Mips.BLTZ] = new Handler() {
+			void execute(Decoded inst) {
+				completeBranch(inst, src1(inst) < 0, branchTarget(inst));
+			}
+		};
+
+		table[Mips.LOAD] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				int value = readMem(registers[inst.rs] + inst.imm, inst.size);
+
+				if (!inst.unsigned)
+					value = Lib.extend(value, 0, inst.size * 8);
+
+				delayedLoad(inst.dstReg, value, 0xFFFFFFFF);
+				advancePC(registers[regNextPC] + 4);
+			}
+		};
+		table[Mips.LWL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				int addr = registers[inst.rs] + inst.imm;
+				int value = readMem(addr & ~0x3, 4);
+
+				// LWL shifts the input left so the addressed byte is highest
+				int preserved = (3 - (addr & 0x3)) * 8;
+				delayedLoad(inst.dstReg, value << preserved, -1 << preserved);
+				advancePC(registers[regNextPC] + 4);
+			}
+		};
+		table[Mips.LWR] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				int addr = registers[inst.rs] + inst.imm;
+				int value = readMem(addr & ~0x3, 4);
+
+				// LWR shifts the input right so the addressed byte is lowest
+				int preserved = (addr & 0x3) * 8;
+				delayedLoad(inst.dstReg, value >>> preserved, -1 >>> preserved);
+				advancePC(registers[regNextPC] + 4);
+			}
+		};
+		table[Mips.STORE] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				writeMem(registers[inst.rs] + inst.imm, inst.size,
+						(int) src2(inst));
+				complete();
+			}
+		};
+		table[Mips.SWL] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				int addr = registers[inst.rs] + inst.imm;
+				int value = readMem(addr & ~0x3, 4);
+
+				// SWL shifts highest order byte into the addressed position
+				int preserved = (3 - (addr & 0x3)) * 8;
+				long mask = -1 >>> preserved;
+				long dst = src2(inst) >>> preserved;
+
+				// merge values
+				dst = (dst & mask) | (value & ~mask);
+
+				writeMem(addr & ~0x3, 4, (int) dst);
+				complete();
+			}
+		};
+		table[Mips.SWR] = new Handler() {
+			void execute(Decoded inst) throws MipsException {
+				int addr = registers[inst.rs] + inst.imm;
+				int value = readMem(addr & ~0x3, 4);
+
+				// SWR shifts the lowest order byte into the addressed position
+				int preserved = (addr & 0x3) * 8;
+				long mask = -1 << preserved;
+				long dst = src2(inst) << preserved;
+
+				// merge values
+				dst = (dst & mask) | (value & ~mask);
+
+				writeMem(addr & ~0x3, 4, (int) dst);
+				complete();
+			}
+		};
+
+		return table;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
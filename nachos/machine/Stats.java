@@ -19,7 +19,7 @@ public final class Stats {
 	 */
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
-				+ kernelTicks + ", user " + userTicks);
+				+ kernelTicks + ", user " + userTicks + ", idle " + idleTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -28,6 +28,76 @@ public final class Stats {
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		printContextSwitches();
+
+		if (numRealTimeJobs > 0) {
+			System.out.println("Real-time: jobs " + numRealTimeJobs
+					+ ", deadline misses " + numDeadlineMisses
+					+ ", max lateness " + maxLateness);
+		}
+	}
+
+	private void printContextSwitches() {
+		System.out.print("Context switches: total " + numContextSwitches
+				+ ", preempted " + numPreemptiveSwitches);
+
+		if (numContextSwitches == 0) {
+			System.out.println();
+			return;
+		}
+
+		long mean = contextSwitchNanos / numContextSwitches;
+		long elapsed = System.nanoTime() - startNanos;
+		System.out.println(", mean " + mean + " ns ("
+				+ (elapsed > 0 ? numContextSwitches * 1000000000L / elapsed : 0)
+				+ " switches/sec over the run)");
+
+		String separator = "Switch latency: ";
+		for (int i = 0; i < contextSwitchHistogram.length; i++) {
+			if (contextSwitchHistogram[i] == 0)
+				continue;
+
+			if (i == contextSwitchHistogram.length - 1)
+				System.out.print(separator + ">=" + (1 << (i - 1)) + "us ");
+			else
+				System.out.print(separator + "<" + (1 << i) + "us ");
+
+			System.out.print(contextSwitchHistogram[i]);
+			separator = ", ";
+		}
+		System.out.println();
+	}
+
+	/**
+	 * Record the real time taken by a context switch, from the moment the
+	 * switching thread hands off the CPU until the next thread runs.
+	 * 
+	 * @param nanos the latency of the switch, in nanoseconds.
+	 */
+	public void recordContextSwitch(long nanos) {
+		contextSwitchNanos += nanos;
+
+		int bucket = 0;
+		for (long micros = nanos / 1000; micros > 0; micros >>= 1)
+			bucket++;
+
+		contextSwitchHistogram[Math.min(bucket,
+				contextSwitchHistogram.length - 1)]++;
+	}
+
+	/**
+	 * Record the completion of a job of a periodic real-time thread.
+	 * 
+	 * @param lateness the number of ticks after its deadline the job
+	 * completed; zero or less if it met its deadline.
+	 */
+	public void recordRealTimeJob(long lateness) {
+		numRealTimeJobs++;
+
+		if (lateness > 0) {
+			numDeadlineMisses++;
+			maxLateness = Math.max(maxLateness, lateness);
+		}
 	}
 
 	/**
@@ -45,6 +115,44 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/**
+	 * The total amount of simulated time that Nachos skipped over because
+	 * only the idle thread could run.
+	 */
+	public long idleTicks = 0;
+
+	/** The total number of times a thread switched the CPU to another one. */
+	public long numContextSwitches = 0;
+
+	/**
+	 * The number of context switches made from an interrupt handler, for
+	 * example when a timer interrupt preempts the running thread.
+	 */
+	public long numPreemptiveSwitches = 0;
+
+	/** The total real time, in nanoseconds, spent in context switches. */
+	public long contextSwitchNanos = 0;
+
+	/** The real time at which these statistics started being kept. */
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * A histogram of context switch latencies. Element 0 counts switches that
+	 * took less than a microsecond, and element <i>i</i> those that took
+	 * less than 2<sup><i>i</i></sup> but at least 2<sup><i>i</i>-1</sup>
+	 * microseconds. The last element also counts all slower switches.
+	 */
+	public long[] contextSwitchHistogram = new long[16];
+
+	/** The total number of jobs completed by periodic real-time threads. */
+	public long numRealTimeJobs = 0;
+
+	/** The number of real-time jobs that completed after their deadline. */
+	public long numDeadlineMisses = 0;
+
+	/** The most ticks by which a real-time job missed its deadline. */
+	public long maxLateness = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
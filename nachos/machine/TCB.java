@@ -6,12 +6,16 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object, which is a virtual thread if <tt>TCB.virtualThreads</tt> is set.
+ * Context switches hand off between the JVM threads by parking and unparking
+ * them.
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +43,50 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		maxThreads = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(maxThreads > 0, "TCB.maxThreads must be positive");
+
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(stackSize >= 0, "TCB.stackSize must not be negative");
+
+		if (Config.getBoolean("TCB.virtualThreads", false))
+			virtualThreadFactory = createVirtualThreadFactory();
+	}
+
+	/**
+	 * Return a factory for virtual threads. Virtual threads need Java 21 or
+	 * later, and Nachos must still build on older releases, so the factory is
+	 * obtained by reflection.
+	 * 
+	 * @return a factory for virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> clsBuilder = Class.forName("java.lang.Thread$Builder");
+
+			return (ThreadFactory) clsBuilder.getMethod("factory").invoke(
+					builder);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("TCB.virtualThreads requires Java 21 or later");
+			return null;
+		}
+	}
+
+	/**
+	 * Create the Java thread for a TCB other than the first. Must be called
+	 * with privilege.
+	 * 
+	 * @param target the code for the thread to run.
+	 * @return the new, unstarted thread.
+	 */
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadFactory != null)
+			return virtualThreadFactory.newThread(target);
+		else
+			return new Thread(null, target, "TCB-" + numJavaThreads++, stackSize);
 	}
 
 	/**
@@ -102,7 +150,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -169,6 +217,15 @@ public final class TCB {
 		TCB previous = currentTCB;
 		previous.running = false;
 
+		Stats stats = privilege.stats;
+		stats.numContextSwitches++;
+
+		previous.inInterruptHandler = Machine.interrupt().inHandler();
+		if (previous.inInterruptHandler)
+			stats.numPreemptiveSwitches++;
+
+		switchStartTime = System.nanoTime();
+
 		this.interrupt();
 		previous.yield();
 	}
@@ -258,6 +315,16 @@ public final class TCB {
 			runningThreads.removeElement(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
+
+			/*
+			 * Virtual threads do not keep the JVM alive, so if the other TCBs
+			 * run on them, the thread of the first TCB must not return before
+			 * Nachos exits.
+			 */
+			if (isFirstTCB && virtualThreadFactory != null) {
+				while (true)
+					LockSupport.park(this);
+			}
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
@@ -288,35 +355,39 @@ public final class TCB {
 		}
 
 		currentTCB = this;
+
+		if (switchStartTime != 0) {
+			privilege.stats.recordContextSwitch(System.nanoTime()
+					- switchStartTime);
+			switchStartTime = 0;
+		}
+
+		Machine.interrupt().setInHandler(inInterruptHandler);
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
 	 * needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
+	 * and unparking the Java thread bound to it. A thread that has not parked
+	 * yet keeps the permit, so the wakeup cannot be lost. Used in the ping-pong process of
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,9 +413,29 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set by <tt>TCB.maxThreads</tt>.
+	 */
+	private static int maxThreads = 250;
+
+	/**
+	 * The stack size, in bytes, requested for each platform Java thread, or
+	 * 0 to use the JVM default. Set by <tt>TCB.stackSize</tt>.
 	 */
-	public static final int maxThreads = 250;
+	private static long stackSize = 0;
+
+	/**
+	 * Creates the Java threads for new TCBs if <tt>TCB.virtualThreads</tt>
+	 * is set, otherwise <tt>null</tt>.
+	 */
+	private static ThreadFactory virtualThreadFactory = null;
+
+	private static int numJavaThreads = 0;
+
+	/**
+	 * The real time at which <tt>contextSwitch()</tt> last handed off the
+	 * CPU, or 0 once the new thread has recorded the switch latency.
+	 */
+	private static long switchStartTime = 0;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -401,9 +492,9 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because it is the handoff between Java threads.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -412,6 +503,12 @@ public final class TCB {
 	 */
 	private boolean done = false;
 
+	/**
+	 * <tt>true</tt> if this TCB was switched out from within an interrupt
+	 * handler, which it returns to when it runs again.
+	 */
+	private boolean inInterruptHandler = false;
+
 	private KThread nachosThread = null;
 
 	private boolean associated = false;
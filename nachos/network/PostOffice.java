@@ -22,9 +22,9 @@ public class PostOffice {
 	 * "postal worker" thread.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		messageReceived = new Semaphore(0, "messageReceived");
+		messageSent = new Semaphore(0, "messageSent");
+		sendLock = new Lock("sendLock");
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
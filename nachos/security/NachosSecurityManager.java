@@ -275,10 +275,32 @@ public class NachosSecurityManager extends SecurityManager {
 			}
 		}
 
+		// the JVM adds carrier threads to run virtual threads as it needs them,
+		// from whichever Nachos thread happens to be running
+		if (isAddingCarrierThread())
+			return;
+
 		// default to requiring privilege
 		verifyPrivilege(perm);
 	}
 
+	/**
+	 * Test whether the permission being checked is needed by the JVM to
+	 * create or set up a carrier thread for virtual threads. Kernel code
+	 * cannot create carrier threads itself.
+	 * 
+	 * @return <tt>true</tt> if a carrier thread is being created.
+	 */
+	private boolean isAddingCarrierThread() {
+		Class<?>[] context = getClassContext();
+		for (int i = 0; i < context.length; i++) {
+			if (context[i].getName().equals("jdk.internal.misc.CarrierThread"))
+				return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * Called by the <tt>java.lang.Thread</tt> constructor to determine a thread
 	 * group for a child thread of the current thread. The caller must be
@@ -157,6 +157,26 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by one user tick for each of the
+		 * specified number of MIPS instructions, then invoke any interrupt
+		 * handlers that have become due.
+		 * 
+		 * @param numInstructions the number of user instructions executed.
+		 */
+		public void tickUser(int numInstructions);
+
+		/**
+		 * Return the number of MIPS instructions that can be executed before
+		 * the next pending interrupt becomes due. Passing this many
+		 * instructions to <tt>tickUser()</tt> advances the simulated time
+		 * exactly to that interrupt. The result is at least one, and is only
+		 * valid until the next interrupt is scheduled.
+		 * 
+		 * @return the number of instructions that can be run ahead.
+		 */
+		public int instructionsUntilDue();
 	}
 
 	/**
@@ -22,7 +22,7 @@ int main(int argc, char** argv)
   }
 
   while ((amount = read(fd, buf, BUFSIZE))>0) {
-    write(1, buf, amount);
+    fwrite(buf, amount, stdout);
   }
 
   close(fd);
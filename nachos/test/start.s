@@ -54,8 +54,8 @@ name:				; \
 	j	$31		; \
 	.end	name
 
-	SYSCALLSTUB(halt, syscallHalt)
-	SYSCALLSTUB(exit, syscallExit)
+	SYSCALLSTUB(_halt, syscallHalt)
+	SYSCALLSTUB(_exit, syscallExit)
 	SYSCALLSTUB(exec, syscallExec)
 	SYSCALLSTUB(join, syscallJoin)
 	SYSCALLSTUB(creat, syscallCreate)
@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
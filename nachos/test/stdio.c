@@ -1,18 +1,79 @@
 #include "stdio.h"
 #include "stdlib.h"
 
+/* Output to stdout is line buffered: it is kept here until a newline is
+ * written, the buffer fills, stdin is read or the program calls exit() or
+ * halt(), and then goes out together with whatever caused the flush in one
+ * writev(). Output still buffered when a program is killed is lost.
+ */
+static char outbuf[128];
+static int outlen = 0;
+
+static void output(int fd, char *data, int len) {
+    struct iovec iov[2];
+    int i;
+
+    if (fd != stdout) {
+	write(fd, data, len);
+	return;
+    }
+
+    if (outlen + len <= sizeof(outbuf)) {
+	memcpy(outbuf + outlen, data, len);
+	outlen += len;
+
+	for (i=0; i<len; i++) {
+	    if (data[i] == '\n') {
+		fflush(stdout);
+		break;
+	    }
+	}
+	return;
+    }
+
+    iov[0].base = outbuf;
+    iov[0].length = outlen;
+    iov[1].base = data;
+    iov[1].length = len;
+    writev(fd, iov, 2);
+    outlen = 0;
+}
+
+void fflush(int fd) {
+    if (fd == stdout && outlen > 0) {
+	write(fd, outbuf, outlen);
+	outlen = 0;
+    }
+}
+
+void exit(int status) {
+    fflush(stdout);
+    _exit(status);
+}
+
+void halt() {
+    fflush(stdout);
+    _halt();
+}
+
 int fgetc(int fd) {
     unsigned char c;
 
+    fflush(stdout);
+
     while (read(fd, &c, 1) != 1);
 
     return c;
 }
 
 void fputc(char c, int fd) {
-    write(fd, &c, 1);
+    output(fd, &c, 1);
 }
 
 void fputs(const char *s, int fd) {
-    write(fd, (char*) s, strlen(s));
+    output(fd, (char*) s, strlen(s));
+}
+
+void fwrite(char *data, int len, int fd) {
+    output(fd, data, len);
 }
@@ -24,6 +24,13 @@ int  tryreadline(char *s, char c, int maxlength);
 
 void fputc(char c, FILE stream);
 void fputs(const char *s, FILE stream);
+void fwrite(char *data, int len, FILE stream);
+void fflush(FILE stream);
+
+/* Output to stdout is line buffered. A raw write(stdout, ...) bypasses the
+ * buffer, so it can appear before output printed earlier; use fwrite(), or
+ * call fflush(stdout) first.
+ */
 
 #define puts(s)		fputs(s,stdout)
 #define putc(c,stream)	fputc(c,stream)
@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -37,6 +40,16 @@
 #define fdStandardInput		0
 #define fdStandardOutput	1
 
+/* One buffer of a vectored read or write. readv() and writev() take an array
+ * of at most maxIovecs of these.
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+#define maxIovecs		64
+
 /* The system call interface. These are the operations the Nachos kernel needs
  * to support, to be able to run user programs.
  *
@@ -50,8 +63,12 @@
  * (the first process, executed by UserKernel.run()) should be allowed to
  * execute this syscall. Any other process should ignore the syscall and return
  * immediately.
+ *
+ * Like exit(), halt() is provided by the C library, which first flushes any
+ * output stdio has buffered for stdout; _halt() is the system call itself.
  */
 void halt();
+void _halt();
 
 /* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
 
@@ -65,8 +82,12 @@ void halt();
  * (but is not required to) set status to 0.
  *
  * exit() never returns.
+ *
+ * exit() is provided by the C library, which first flushes any output stdio
+ * has buffered for stdout; _exit() is the system call itself.
  */
 void exit(int status);
+void _exit(int status);
 
 /**
  * Execute the program stored in the specified file, with the specified
@@ -181,6 +202,29 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * Read into each of the iovcnt buffers described by iov in turn, as if by one
+ * read() whose buffer was all of them concatenated, but in a single system
+ * call. Reading stops early, as for read(), if fewer bytes are available than
+ * fit in the buffers.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred. It is an
+ * error if iovcnt is negative or more than maxIovecs, if any length is
+ * negative, or if the first buffer is invalid or read-only. If a later buffer
+ * is invalid, the bytes read into the buffers before it are returned.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write each of the iovcnt buffers described by iov in turn, as if by one
+ * write() of all of them concatenated, but in a single system call.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred. As
+ * for write(), it is an error if fewer bytes than requested are written, and
+ * the errors are otherwise those of readv().
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -215,18 +259,28 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
- *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into memory at an address chosen by the kernel. offset must be a
+ * multiple of the page size. Pages of the file are read when they are first
+ * touched, and bytes past the end of the file read as zeros.
+ *
+ * The map keeps its own reference to the file, so fileDescriptor may be
+ * closed. Changes to the map are written back to the file when munmap() is
+ * called or the process exits, and may be written earlier; writing past the
+ * end of the file extends it.
+ *
+ * Returns the address of the map, or -1 if an error occurred. Only files on
+ * disk can be mapped.
+ */
+char *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Write back the changes to the map at address, which must have been returned
+ * by mmap(), and remove it from memory.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if an error occurred.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(char *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -1,8 +1,6 @@
 package nachos.threads;
 
-import java.util.Comparator;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 import java.util.Random;
 
 import nachos.machine.*;
@@ -10,6 +8,17 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timers are kept in a hierarchical timing wheel. Level <i>i</i> of
+ * the wheel has 64 slots, each covering 64<sup><i>i</i></sup> ticks, and a
+ * timer is kept on the lowest level at which its wake time and the current
+ * time of the wheel differ. Scheduling and cancelling a timer take constant
+ * time. When the wheel advances, it jumps straight to the next occupied slot
+ * using a bitmap of the occupied slots on each level, expires the timers that
+ * are due, and moves the rest down a level. Each timer moves down at most once
+ * per level, so advancing takes time proportional to the number of timers that
+ * expire.
  */
 public class Alarm {
 	/**
@@ -20,6 +29,8 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		current = Machine.timer().getTime();
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -29,20 +40,23 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Runs the handlers of
+	 * all the timers that are due, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run,
+	 * unless the scheduler decides the thread may keep running.
 	 */
 	public void timerInterrupt() {
 		// Remove interrupt disabling later if not needed
 		boolean intStatus = Machine.interrupt().disable();
 
-		while(!waitQueue.isEmpty() && waitQueue.peek().getWaitTime() <= Machine.timer().getTime())
-			waitQueue.remove().ready();
+		advance(Machine.timer().getTime());
+
+		boolean preempt = ThreadedKernel.scheduler.shouldPreempt(KThread.currentThread());
 
 		Machine.interrupt().restore(intStatus);
 
-		KThread.currentThread().yield();
+		if (preempt)
+			KThread.currentThread().yield();
 	}
 
 	/**
@@ -60,14 +74,252 @@ public class Alarm {
 	public void waitUntil(long x) {
 		boolean intStatus = Machine.interrupt().disable();
 
-		long wakeTime = Machine.timer().getTime() + x;
-		KThread.currentThread().setWaitTime(wakeTime);
-		waitQueue.add(KThread.currentThread());
+		final KThread thread = KThread.currentThread();
+		schedule(x, new Runnable() {
+			public void run() {
+				thread.ready();
+			}
+		});
 		KThread.sleep();
 
 		Machine.interrupt().restore(intStatus);
 	}
-	
+
+	/**
+	 * Put the current thread to sleep on the specified queue for at most
+	 * <i>x</i> ticks. The thread wakes up either when the queue hands it access
+	 * through <tt>nextThread()</tt>, or in the first timer interrupt where
+	 * 
+	 * <p>
+	 * <blockquote> (current time) >= (sleepOn called time)+(x) </blockquote>
+	 * 
+	 * <p>
+	 * whichever comes first. On a timeout, the thread is removed from the
+	 * queue; otherwise its timer is cancelled. Must be called with interrupts
+	 * disabled.
+	 * 
+	 * @param queue the queue to wait on.
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was given access by the queue, or
+	 * <tt>false</tt> if it timed out.
+	 */
+	public boolean sleepOn(ThreadQueue queue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Timeout timeout = new Timeout(queue, KThread.currentThread());
+		Token token = schedule(x, timeout);
+
+		queue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		cancel(token);
+
+		return !timeout.expired;
+	}
+
+	/**
+	 * Takes a thread that timed out off the queue it was waiting on.
+	 */
+	private static class Timeout implements Runnable {
+		Timeout(ThreadQueue queue, KThread thread) {
+			this.queue = queue;
+			this.thread = thread;
+		}
+
+		public void run() {
+			if (queue.remove(thread)) {
+				expired = true;
+				thread.ready();
+			}
+		}
+
+		private ThreadQueue queue;
+
+		private KThread thread;
+
+		boolean expired = false;
+	}
+
+	/**
+	 * Arrange for the specified handler to be run, with interrupts disabled,
+	 * in the first timer interrupt where
+	 *
+	 * <p>
+	 * <blockquote> (current time) >= (schedule called time)+(x) </blockquote>
+	 *
+	 * @param x the minimum number of clock ticks to wait.
+	 * @param handler the handler to run.
+	 * @return a token that can be passed to <tt>cancel()</tt>.
+	 */
+	public Token schedule(long x, Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Token token = new Token(Machine.timer().getTime() + x, handler);
+		insert(token);
+
+		Machine.interrupt().restore(intStatus);
+
+		return token;
+	}
+
+	/**
+	 * Cancel a timer, so that its handler will not be run.
+	 *
+	 * @param token the token returned when the timer was scheduled.
+	 * @return <tt>true</tt> if the timer was cancelled, or <tt>false</tt> if
+	 * its handler has already run or it was already cancelled.
+	 */
+	public boolean cancel(Token token) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean pending = (token.slot >= 0);
+		if (pending)
+			unlink(token);
+
+		Machine.interrupt().restore(intStatus);
+
+		return pending;
+	}
+
+	/**
+	 * A timer scheduled with <tt>schedule()</tt>.
+	 */
+	public static class Token {
+		private Token(long time, Runnable handler) {
+			this.time = time;
+			this.handler = handler;
+		}
+
+		/**
+		 * Return the time at which this timer is due.
+		 *
+		 * @return the time at which this timer is due.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		private long time;
+
+		private Runnable handler;
+
+		/** The slot this timer is linked into, or -1 if it is not pending. */
+		private int slot = -1;
+
+		private Token prev, next;
+	}
+
+	/**
+	 * Advance the wheel to the specified time, running the handlers of the
+	 * timers that are due.
+	 */
+	private void advance(long now) {
+		// timers that were scheduled at or before the current time
+		while (heads[dueSlot] != null)
+			expire(heads[dueSlot]);
+
+		while (true) {
+			// find the next occupied slot; lower levels always come first
+			int level;
+			long occupiedAhead = 0;
+			for (level = 0; level < numLevels; level++) {
+				int index = indexOf(current, level);
+				occupiedAhead = occupied[level] & (-2L << index);
+				if (occupiedAhead != 0)
+					break;
+			}
+
+			if (level == numLevels)
+				break;
+
+			int index = Long.numberOfTrailingZeros(occupiedAhead);
+			int shift = level * slotBits;
+			long start = (((current >>> shift) & ~slotMask) | index) << shift;
+
+			if (start > now)
+				break;
+
+			current = start;
+
+			// expire the timers that are due, and move the rest down a level
+			int slot = level * numSlots + index;
+			while (heads[slot] != null) {
+				Token token = heads[slot];
+				if (token.time <= current) {
+					expire(token);
+				}
+				else {
+					unlink(token);
+					insert(token);
+				}
+			}
+		}
+
+		current = now;
+	}
+
+	private void expire(Token token) {
+		unlink(token);
+		token.handler.run();
+	}
+
+	private static int indexOf(long time, int level) {
+		return (int) (time >>> (level * slotBits)) & slotMask;
+	}
+
+	/**
+	 * Link a timer into the slot for its time: the due list if its time has
+	 * come, otherwise the slot on the lowest level at which its time and
+	 * <tt>current</tt> differ.
+	 */
+	private void insert(Token token) {
+		int slot;
+
+		if (token.time <= current) {
+			slot = dueSlot;
+		}
+		else {
+			int highestBit = 63 - Long.numberOfLeadingZeros(token.time ^ current);
+			int level = highestBit / slotBits;
+			int index = indexOf(token.time, level);
+
+			slot = level * numSlots + index;
+			occupied[level] |= 1L << index;
+		}
+
+		token.slot = slot;
+		token.next = null;
+		token.prev = tails[slot];
+
+		if (tails[slot] == null)
+			heads[slot] = token;
+		else
+			tails[slot].next = token;
+		tails[slot] = token;
+	}
+
+	private void unlink(Token token) {
+		int slot = token.slot;
+
+		if (token.prev == null)
+			heads[slot] = token.next;
+		else
+			token.prev.next = token.next;
+
+		if (token.next == null)
+			tails[slot] = token.prev;
+		else
+			token.next.prev = token.prev;
+
+		if (heads[slot] == null && slot != dueSlot)
+			occupied[slot / numSlots] &= ~(1L << (slot % numSlots));
+
+		token.slot = -1;
+		token.prev = token.next = null;
+	}
+
 	/**
      * Place this function inside Alarm. And make sure Alarm.selfTest() is called inside ThreadedKernel.selfTest()
 	 * method.
@@ -102,16 +354,28 @@ public class Alarm {
 		}
 	}
 
-	static class PQKWaitSort implements Comparator<KThread> {
-		public int compare(KThread one, KThread two) {
-			return (int)(two.getWaitTime() - one.getWaitTime());
-		}
-	}
-
 	// Only used in selfTest()
 	private static int dSize = 0;
 
-	private PQKWaitSort comp = new PQKWaitSort();
+	private static final int slotBits = 6;
+
+	private static final int numSlots = 1 << slotBits;
+
+	private static final int slotMask = numSlots - 1;
+
+	/** Enough levels to hold any wake time. */
+	private static final int numLevels = (64 + slotBits - 1) / slotBits;
+
+	/** The extra slot that holds timers that were already due. */
+	private static final int dueSlot = numLevels * numSlots;
+
+	private Token[] heads = new Token[dueSlot + 1];
+
+	private Token[] tails = new Token[dueSlot + 1];
+
+	/** For each level, a bitmap of the slots that hold timers. */
+	private long[] occupied = new long[numLevels];
 
-	private PriorityQueue<KThread> waitQueue = new PriorityQueue<KThread>(comp);
-}
\ No newline at end of file
+	/** The time up to which timers have expired. */
+	private long current;
+}
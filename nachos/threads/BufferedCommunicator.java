@@ -0,0 +1,310 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>buffered communicator</i> allows threads to exchange 32-bit messages
+ * through a bounded buffer. Unlike a <tt>Communicator</tt>, a speaker does not
+ * wait for a listener: <tt>speak()</tt> returns as soon as its word is in the
+ * buffer, and only waits if the buffer is full. A listener waits only if the
+ * buffer is empty. Words are received in the order they were spoken.
+ *
+ * <p>
+ * The words are kept in a ring of <tt>int</tt>s, and <tt>speakAll()</tt> and
+ * <tt>listenUpTo()</tt> move as many words as fit each time they hold the
+ * lock, so that a producer and a consumer exchanging many words switch between
+ * each other about once per buffer full, rather than several times per word.
+ */
+public class BufferedCommunicator {
+	/**
+	 * Allocate a new buffered communicator, whose capacity is given by
+	 * <tt>BufferedCommunicator.capacity</tt>.
+	 */
+	public BufferedCommunicator() {
+		this(Config.getInteger("BufferedCommunicator.capacity", 64));
+	}
+
+	/**
+	 * Allocate a new buffered communicator.
+	 *
+	 * @param capacity the number of words the buffer can hold.
+	 */
+	public BufferedCommunicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		ring = new int[capacity];
+
+		lock = new Lock();
+		notFull = new Condition2(lock);
+		notEmpty = new Condition2(lock);
+	}
+
+	/**
+	 * Put <i>word</i> in the buffer, waiting for room if it is full.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		while (count == ring.length)
+			notFull.sleep();
+
+		ring[(head + count) % ring.length] = word;
+		count++;
+
+		notEmpty.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Put all of <i>words</i> in the buffer, in order, waiting for room
+	 * whenever the buffer is full. Words from other speakers may be
+	 * interleaved between batches.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		int sent = 0;
+
+		lock.acquire();
+
+		while (sent < words.length) {
+			while (count == ring.length)
+				notFull.sleep();
+
+			int n = Math.min(words.length - sent, ring.length - count);
+			int tail = (head + count) % ring.length;
+
+			// the free space may wrap around the end of the ring
+			int first = Math.min(n, ring.length - tail);
+			System.arraycopy(words, sent, ring, tail, first);
+			System.arraycopy(words, sent + first, ring, 0, n - first);
+
+			count += n;
+			sent += n;
+
+			notEmpty.wakeAll();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Take the next word from the buffer, waiting for a speaker if it is
+	 * empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int word = ring[head];
+		head = (head + 1) % ring.length;
+		count--;
+
+		notFull.wake();
+
+		lock.release();
+
+		return word;
+	}
+
+	/**
+	 * Take as many words from the buffer as are available, up to the length
+	 * of <i>words</i>, waiting for a speaker only if the buffer is empty.
+	 *
+	 * @param words the array to fill with the integers transferred.
+	 * @return the number of words transferred, which is at least one unless
+	 * <i>words</i> is empty.
+	 */
+	public int listenUpTo(int[] words) {
+		if (words.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int n = Math.min(words.length, count);
+
+		int first = Math.min(n, ring.length - head);
+		System.arraycopy(ring, head, words, 0, first);
+		System.arraycopy(ring, 0, words, first, n - first);
+
+		head = (head + n) % ring.length;
+		count -= n;
+
+		notFull.wakeAll();
+
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Test this module. Two speakers send numbered words, one a word at a time
+	 * and one in batches, to two listeners that also use one interface each.
+	 * Every word must arrive exactly once, and each listener must see the
+	 * words of each speaker in order. Then compare the time taken to move
+	 * words through a <tt>Communicator</tt>, and through this class one word
+	 * and one batch at a time.
+	 */
+	public static void selfTest() {
+		final BufferedCommunicator com = new BufferedCommunicator(16);
+		final int words = 1000;
+		final boolean[][] received = new boolean[2][words];
+
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < 2; i++) {
+			final int which = i;
+
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					if (which == 0) {
+						for (int w = 0; w < words; w++)
+							com.speak(w);
+						return;
+					}
+
+					for (int w = 0; w < words;) {
+						int[] batch = new int[Math.min(37, words - w)];
+						for (int j = 0; j < batch.length; j++)
+							batch[j] = (1 << 16) | w++;
+						com.speakAll(batch);
+					}
+				}
+			}).setName("speaker " + i);
+
+			threads[i + 2] = new KThread(new Runnable() {
+				public void run() {
+					int[] last = { -1, -1 };
+
+					for (int got = 0; got < words;) {
+						int[] batch;
+						if (which == 0) {
+							batch = new int[] { com.listen() };
+						}
+						else {
+							batch = new int[Math.min(10, words - got)];
+							batch = java.util.Arrays.copyOf(batch,
+									com.listenUpTo(batch));
+						}
+
+						for (int j = 0; j < batch.length; j++, got++) {
+							int from = batch[j] >>> 16;
+							int word = batch[j] & 0xFFFF;
+
+							Lib.assertTrue(!received[from][word],
+									"word received twice");
+							Lib.assertTrue(word > last[from],
+									"words received out of order");
+							received[from][word] = true;
+							last[from] = word;
+						}
+					}
+				}
+			}).setName("listener " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		for (int i = 0; i < 2; i++) {
+			for (int w = 0; w < words; w++)
+				Lib.assertTrue(received[i][w], "word lost");
+		}
+
+		System.out.println("BufferedCommunicator: " + 2 * words
+				+ " words received");
+
+		compare(2000);
+	}
+
+	/**
+	 * Move <i>words</i> words from one thread to another through a
+	 * <tt>Communicator</tt>, a buffered communicator one word at a time, and
+	 * a buffered communicator in batches, and print the time each took.
+	 */
+	private static void compare(final int words) {
+		final Communicator rendezvous = new Communicator();
+		final BufferedCommunicator buffered = new BufferedCommunicator();
+
+		for (int mode = 0; mode < 3; mode++) {
+			final int which = mode;
+
+			KThread speaker = new KThread(new Runnable() {
+				public void run() {
+					if (which == 0) {
+						for (int i = 0; i < words; i++)
+							rendezvous.speak(i);
+					}
+					else if (which == 1) {
+						for (int i = 0; i < words; i++)
+							buffered.speak(i);
+					}
+					else {
+						int[] batch = new int[words];
+						for (int i = 0; i < words; i++)
+							batch[i] = i;
+						buffered.speakAll(batch);
+					}
+				}
+			});
+
+			KThread listener = new KThread(new Runnable() {
+				public void run() {
+					if (which == 0) {
+						for (int i = 0; i < words; i++)
+							Lib.assertTrue(rendezvous.listen() == i);
+					}
+					else if (which == 1) {
+						for (int i = 0; i < words; i++)
+							Lib.assertTrue(buffered.listen() == i);
+					}
+					else {
+						int[] batch = new int[64];
+						for (int i = 0; i < words;) {
+							int n = buffered.listenUpTo(batch);
+							for (int j = 0; j < n; j++)
+								Lib.assertTrue(batch[j] == i++);
+						}
+					}
+				}
+			});
+
+			long startTicks = Machine.timer().getTime();
+			long startTime = System.nanoTime();
+
+			speaker.fork();
+			listener.fork();
+			speaker.join();
+			listener.join();
+
+			String[] names = { "Communicator", "speak/listen", "speakAll/listenUpTo" };
+			System.out.println("BufferedCommunicator: " + words + " words via "
+					+ names[which] + " in "
+					+ (Machine.timer().getTime() - startTicks) + " ticks, "
+					+ (System.nanoTime() - startTime) / 1000 + " us");
+		}
+	}
+
+	private int[] ring;
+
+	/** The index of the oldest word in the ring. */
+	private int head = 0;
+
+	/** The number of words in the ring. */
+	private int count = 0;
+
+	private Lock lock;
+
+	private Condition2 notFull, notEmpty;
+}
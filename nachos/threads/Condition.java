@@ -77,13 +77,25 @@ public class Condition {
 	 * though the lock is released before caling <tt>P()</tt>.
 	 */
 	public void sleep() {
+		sleep(null);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but expecting <i>waker</i> to be the thread that
+	 * wakes the current thread. The deadlock detector then treats the wait as
+	 * a wait for that thread.
+	 * 
+	 * @param waker the thread expected to call <tt>wake()</tt> or
+	 * <tt>wakeAll()</tt>, or <tt>null</tt> if it may be any thread.
+	 */
+	public void sleep(KThread waker) {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		Semaphore waiter = new Semaphore(0);
 		waitQueue.add(waiter);
 
 		conditionLock.release();
-		waiter.P();
+		waiter.P(waker);
 		conditionLock.acquire();
 	}
 
@@ -22,8 +22,21 @@ public class Condition2 {
 	 * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
+		this(conditionLock, null);
+	}
+
+	/**
+	 * Allocate a new condition variable with a name, which identifies it in
+	 * the lock profile.
+	 * 
+	 * @param conditionLock the lock associated with this condition variable.
+	 * @param name the name of the condition variable.
+	 */
+	public Condition2(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
-		this.waitingList = new LinkedList<KThread>();
+		this.waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+		this.name = name;
+		this.profile = LockProfiler.register("Condition2", name);
 	}
 
 	/**
@@ -33,16 +46,73 @@ public class Condition2 {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 */
 	public void sleep() {
+		sleep(null);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but expecting <i>waker</i> to be the thread that
+	 * wakes the current thread. The deadlock detector then treats the wait as
+	 * a wait for that thread.
+	 * 
+	 * @param waker the thread expected to call <tt>wake()</tt> or
+	 * <tt>wakeAll()</tt>, or <tt>null</tt> if it may be any thread.
+	 */
+	public void sleep(KThread waker) {
 		boolean intStatus = Machine.interrupt().disable();
 
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		
+		long waitStart = (profile != null) ? profile.startWait() : 0;
+
 		conditionLock.release();
-		waitingList.add(KThread.currentThread());
+		waitQueue.waitForAccess(KThread.currentThread());
+
+		if (DeadlockDetector.enabled)
+			DeadlockDetector.blocking(this, waker, "Condition2", name);
+
 		KThread.sleep();
+
+		if (profile != null) {
+			profile.waited(KThread.currentThread(), waitStart);
+			profile.acquiredUnheld();
+		}
+
+		conditionLock.acquire();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release the associated lock and go to sleep on this condition
+	 * variable until either another thread wakes it using <tt>wake()</tt>, or
+	 * at least <i>ticks</i> clock ticks have passed. The current thread must
+	 * hold the associated lock. The thread will automatically reacquire the
+	 * lock before <tt>sleepFor()</tt> returns.
+	 * 
+	 * @param ticks the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt>, or
+	 * <tt>false</tt> if it timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		long waitStart = (profile != null) ? profile.startWait() : 0;
+
+		conditionLock.release();
+		boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+		if (profile != null) {
+			profile.waited(KThread.currentThread(), waitStart);
+			if (woken)
+				profile.acquiredUnheld();
+		}
+
 		conditionLock.acquire();
 
 		Machine.interrupt().restore(intStatus);
+		return woken;
 	}
 
 	/**
@@ -54,8 +124,9 @@ public class Condition2 {
 
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		if (!waitingList.isEmpty())
-			waitingList.poll().ready();
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -69,8 +140,9 @@ public class Condition2 {
 
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while (!waitingList.isEmpty())
-			this.wake();
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -115,8 +187,30 @@ public class Condition2 {
 		producer.fork();
 		consumer.join();
 		producer.join();
+
+		// a timed sleep that expires, then one that wake() cuts short
+		lock.acquire();
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!empty.sleepFor(2000), "sleepFor() should time out.");
+		Lib.assertTrue(Machine.timer().getTime() - start >= 2000, "sleepFor() woke up early.");
+
+		KThread waker = new KThread( new Runnable () {
+			public void run() {
+				lock.acquire();
+				empty.wake();
+				lock.release();
+			}
+		});
+
+		waker.setName("Waker");
+		waker.fork();
+		Lib.assertTrue(empty.sleepFor(100000), "sleepFor() should be woken.");
+		lock.release();
+		waker.join();
 	}
 
 	private Lock conditionLock;
-	private LinkedList<KThread> waitingList;
+	private ThreadQueue waitQueue;
+	private String name;
+	private LockProfiler profile;
 }
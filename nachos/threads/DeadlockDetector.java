@@ -0,0 +1,245 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Detects deadlocks among kernel threads as they happen. Enabled by
+ * <tt>DeadlockDetector.enabled</tt>.
+ *
+ * <p>
+ * Every <tt>Lock</tt>, <tt>ReadWriteLock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition2</tt> and <tt>KThread.join()</tt> tells the detector what the
+ * current thread is about to block on, which makes the blocked threads and the
+ * resources they wait for a wait-for graph. A thread waiting for a lock waits
+ * for the lock's holder, and a thread in <tt>join()</tt> waits for the thread
+ * it joined. Since a blocked thread waits for exactly one thing, the graph is
+ * checked incrementally by following the chain of holders from the resource
+ * the thread is about to block on. If the chain leads back to the thread, the
+ * cycle is printed and the kernel stops with an assertion failure.
+ *
+ * <p>
+ * A semaphore or condition variable can be signalled by any thread, so a wait
+ * on one ends the chain, unless the waiter names the thread it expects to
+ * signal it, as with <tt>Semaphore.P(KThread)</tt> or
+ * <tt>Condition2.sleep(KThread)</tt>. The waiter then waits for that thread,
+ * as if joining it. A deadlock through a wait that names no thread is not
+ * detected.
+ *
+ * <p>
+ * When the detector is disabled each primitive only tests a constant. When it
+ * is enabled, blocking costs a walk along the chain, which is usually one or
+ * two threads long. Stack summaries of the other threads in a cycle need a
+ * stack trace to be recorded every time a thread blocks, so they are only
+ * kept if <tt>DeadlockDetector.stacks</tt> is set.
+ */
+public class DeadlockDetector {
+	private DeadlockDetector() {
+	}
+
+	/**
+	 * Record that the current thread is about to block on <i>resource</i>,
+	 * and check whether doing so closes a cycle. Must be called with
+	 * interrupts disabled. The thread stops being blocked when it is next
+	 * made ready, which is when a lock is handed to it.
+	 *
+	 * @param resource the <tt>Lock</tt>, <tt>ReadWriteLock</tt> or
+	 * <tt>KThread</tt> whose owner the thread waits for, or any other object
+	 * if the owner is unknown.
+	 * @param kind what kind of resource it is, for the report.
+	 * @param name the name of the resource, or <tt>null</tt>.
+	 */
+	static void blocking(Object resource, String kind, String name) {
+		blocking(resource, null, kind, name);
+	}
+
+	/**
+	 * Record that the current thread is about to block on <i>resource</i>,
+	 * which has no owner but is expected to be signalled by
+	 * <i>signaller</i>, and check whether doing so closes a cycle. Must be
+	 * called with interrupts disabled.
+	 *
+	 * @param resource the resource the thread waits for.
+	 * @param signaller the thread expected to wake the thread, or
+	 * <tt>null</tt> if it is not known.
+	 * @param kind what kind of resource it is, for the report.
+	 * @param name the name of the resource, or <tt>null</tt>.
+	 */
+	static void blocking(Object resource, KThread signaller, String kind,
+			String name) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = KThread.currentThread();
+
+		Wait wait = thread.blockedOn;
+		if (wait == null)
+			thread.blockedOn = wait = new Wait();
+
+		wait.resource = resource;
+		wait.signaller = signaller;
+		wait.kind = kind;
+		wait.name = name;
+		wait.since = Machine.timer().getTime();
+		wait.stack = recordStacks ? new Throwable() : null;
+		wait.blocked = true;
+
+		numBlocked++;
+
+		// at most numBlocked steps, in case an earlier cycle was not stopped
+		KThread next = waitsFor(wait);
+		for (int i = 0; i < numBlocked && next != null; i++) {
+			if (next == thread) {
+				report(thread);
+				Lib.assertNotReached("deadlock");
+			}
+
+			if (next.blockedOn == null || !next.blockedOn.blocked)
+				break;
+
+			next = waitsFor(next.blockedOn);
+		}
+	}
+
+	/**
+	 * Record that <i>thread</i> is no longer blocked, because it was made
+	 * ready. Must be called with interrupts disabled.
+	 *
+	 * @param thread the thread being made ready.
+	 */
+	static void unblocked(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Wait wait = thread.blockedOn;
+		if (wait == null || !wait.blocked)
+			return;
+
+		wait.blocked = false;
+		wait.resource = null;
+		wait.signaller = null;
+		wait.stack = null;
+
+		numBlocked--;
+	}
+
+	/**
+	 * Return the thread that a blocked thread waits for, if it is known:
+	 * the owner of the resource, or else the thread named as its signaller.
+	 */
+	private static KThread waitsFor(Wait wait) {
+		KThread owner = ownerOf(wait.resource);
+		return (owner != null) ? owner : wait.signaller;
+	}
+
+	/**
+	 * Return the thread that a thread waiting for <i>resource</i> waits for,
+	 * if it is known.
+	 */
+	private static KThread ownerOf(Object resource) {
+		if (resource instanceof Lock)
+			return ((Lock) resource).getHolder();
+		else if (resource instanceof ReadWriteLock)
+			return ((ReadWriteLock) resource).getOwner();
+		else if (resource instanceof KThread)
+			return (KThread) resource;
+		else
+			return null;
+	}
+
+	/**
+	 * Print the cycle of threads that starts and ends with <i>thread</i>.
+	 */
+	private static void report(KThread thread) {
+		System.out.println("Deadlock detected at "
+				+ Machine.timer().getTime() + ":");
+
+		KThread t = thread;
+		do {
+			Wait wait = t.blockedOn;
+			KThread owner = waitsFor(wait);
+
+			String line = "  " + t;
+			if (wait.resource instanceof KThread) {
+				line += " waits to join " + owner;
+			}
+			else {
+				line += " waits for " + wait.kind;
+				if (wait.name != null)
+					line += " " + wait.name;
+				if (ownerOf(wait.resource) != null)
+					line += ", held by " + owner;
+				else
+					line += ", to be signalled by " + owner;
+			}
+			System.out.println(line + ", since " + wait.since);
+
+			Throwable stack = (t == thread) ? new Throwable() : wait.stack;
+			if (stack != null)
+				printStack(stack);
+			else
+				System.out.println("      (set DeadlockDetector.stacks for stacks)");
+
+			t = owner;
+		} while (t != thread);
+	}
+
+	/**
+	 * Print the first few frames of <i>stack</i> outside the synchronization
+	 * primitives.
+	 */
+	private static void printStack(Throwable stack) {
+		int printed = 0;
+		for (StackTraceElement frame : stack.getStackTrace()) {
+			if (printed == 0 && isPrimitive(frame.getClassName()))
+				continue;
+
+			System.out.println("      at " + frame);
+			if (++printed == numFrames)
+				break;
+		}
+	}
+
+	private static boolean isPrimitive(String className) {
+		for (Class<?> c : primitives) {
+			if (className.equals(c.getName()))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static final Class<?>[] primitives = { DeadlockDetector.class,
+			Lock.class, ReadWriteLock.class, Semaphore.class, Condition2.class,
+			KThread.class };
+
+	/** Whether the detector is enabled. */
+	static final boolean enabled = Config.getBoolean(
+			"DeadlockDetector.enabled", false);
+
+	private static final boolean recordStacks = Config.getBoolean(
+			"DeadlockDetector.stacks", false);
+
+	private static final int numFrames = 4;
+
+	/** The number of threads that are blocked. */
+	private static int numBlocked = 0;
+
+	/**
+	 * What a thread is blocked on. Each thread keeps one, which is reused
+	 * every time it blocks.
+	 */
+	static class Wait {
+		Object resource;
+
+		/** The thread expected to wake the thread, if named. */
+		KThread signaller;
+
+		String kind, name;
+
+		/** When the thread blocked. */
+		long since;
+
+		/** Where the thread blocked, if stacks are recorded. */
+		Throwable stack;
+
+		boolean blocked = false;
+	}
+}
@@ -0,0 +1,331 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class.
+ *
+ * <p>
+ * A thread joins the real-time class by declaring a period and a relative
+ * deadline with <tt>setPeriodic()</tt>. Its work is then divided into jobs:
+ * the first job is released immediately, and each time the thread calls
+ * <tt>waitForNextPeriod()</tt> its current job completes, and the thread
+ * sleeps on the alarm until the next job is released, one period after the
+ * previous one. Each job must complete within the relative deadline of its
+ * release. Every completed job, and whether it missed its deadline, is
+ * reported to the machine statistics.
+ *
+ * <p>
+ * Ready real-time threads are kept in a tree ordered by the absolute deadline
+ * of their current job, and always run before regular threads. A timer
+ * interrupt preempts a real-time thread only if a job with an earlier
+ * deadline is ready. Regular threads are kept in FIFO order, and are
+ * scheduled round robin when no real-time work is ready.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new deadline-ordered thread queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not donate
+	 * deadlines.
+	 * @return a new thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue();
+	}
+
+	/**
+	 * Allocate the ready queue.
+	 *
+	 * @return the ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new DeadlineQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Make the specified thread a periodic real-time thread, and release its
+	 * first job now. Must be called with interrupts disabled, and the thread
+	 * must not be waiting on any queue.
+	 *
+	 * @param thread the thread.
+	 * @param period the number of ticks between releases of the thread's
+	 * jobs.
+	 * @param deadline the number of ticks after its release by which each job
+	 * must complete.
+	 */
+	public void setPeriodic(KThread thread, long period, long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && deadline > 0);
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.queue == null);
+
+		state.period = period;
+		state.relativeDeadline = deadline;
+		state.release = Machine.timer().getTime();
+		state.deadline = state.release + deadline;
+	}
+
+	/**
+	 * Complete the current job of the current thread, which must be a
+	 * periodic real-time thread, and sleep until its next job is released. If
+	 * the next release time has already passed, return immediately.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.isRealTime());
+
+		long now = Machine.timer().getTime();
+
+		Machine.autoGrader().realTimeJobCompleted(thread, now - state.deadline);
+
+		state.release += state.period;
+		state.deadline = state.release + state.relativeDeadline;
+
+		if (state.release > now)
+			ThreadedKernel.alarm.waitUntil(state.release - now);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Preempt a regular thread on every timer interrupt, as a round-robin
+	 * scheduler would. Preempt a real-time thread only if a job with an
+	 * earlier deadline is ready.
+	 */
+	public boolean shouldPreempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		if (!state.isRealTime())
+			return true;
+
+		return !readyQueue.realTime.isEmpty()
+				&& readyQueue.realTime.first().deadline < state.deadline;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Test this scheduler. Runs two periodic threads that each use part of
+	 * their period, alongside a regular thread that never blocks, and checks
+	 * that no deadlines are missed. Does nothing unless this scheduler is in
+	 * use.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+		final int jobs = 20;
+
+		KThread[] threads = new KThread[3];
+		final long[] periods = { 3000, 5000 };
+		final int[] work = { 80, 150 };
+
+		for (int i = 0; i < 2; i++) {
+			final int which = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < jobs; j++) {
+						spin(work[which]);
+						scheduler.waitForNextPeriod();
+					}
+				}
+			}).setName("periodic " + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.setPeriodic(threads[i], periods[i], periods[i]);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		threads[2] = new KThread(new Runnable() {
+			public void run() {
+				spin(jobs * 5000 / Stats.KernelTick);
+			}
+		}).setName("background");
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		System.out.println("EDFScheduler.selfTest() done at "
+				+ Machine.timer().getTime());
+	}
+
+	/**
+	 * Use the processor for about <i>n</i> kernel ticks.
+	 */
+	private static void spin(int n) {
+		for (int i = 0; i < n; i++) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/**
+	 * A queue that holds real-time threads in a balanced tree by deadline,
+	 * ahead of regular threads in FIFO order.
+	 */
+	private class DeadlineQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+
+			state.queue = this;
+
+			if (state.isRealTime()) {
+				state.arrival = numArrivals++;
+				realTime.add(state);
+			}
+			else {
+				regular.add(state);
+			}
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state;
+			if (!realTime.isEmpty())
+				state = realTime.pollFirst();
+			else if (!regular.isEmpty()) {
+				Iterator<ThreadState> i = regular.iterator();
+				state = i.next();
+				i.remove();
+			}
+			else {
+				return null;
+			}
+
+			state.queue = null;
+			return state.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.queue != this)
+				return false;
+
+			if (state.isRealTime())
+				realTime.remove(state);
+			else
+				regular.remove(state);
+
+			state.queue = null;
+			return true;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(realTime.isEmpty() && regular.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = realTime.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " [" + state.deadline + "] ");
+			}
+
+			for (Iterator<ThreadState> i = regular.iterator(); i.hasNext();)
+				System.out.print(i.next().thread + " ");
+		}
+
+		TreeSet<ThreadState> realTime = new TreeSet<ThreadState>(deadlineOrder);
+
+		LinkedHashSet<ThreadState> regular = new LinkedHashSet<ThreadState>();
+
+		/** Orders real-time threads with the same deadline FIFO. */
+		private long numArrivals = 0;
+	}
+
+	private static class DeadlineOrder implements Comparator<ThreadState> {
+		public int compare(ThreadState a, ThreadState b) {
+			if (a.deadline != b.deadline)
+				return a.deadline < b.deadline ? -1 : 1;
+			else
+				return a.arrival < b.arrival ? -1 : (a.arrival > b.arrival ? 1
+						: 0);
+		}
+	}
+
+	private static final DeadlineOrder deadlineOrder = new DeadlineOrder();
+
+	private DeadlineQueue readyQueue = null;
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected static class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Return <tt>true</tt> if the thread has declared a period.
+		 *
+		 * @return <tt>true</tt> if the thread is a real-time thread.
+		 */
+		boolean isRealTime() {
+			return period > 0;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The period of the thread; 0 for a regular thread. */
+		long period = 0;
+
+		/** How long after its release each job must complete. */
+		long relativeDeadline;
+
+		/** When the current job was released. */
+		long release;
+
+		/** The absolute deadline of the current job. */
+		long deadline;
+
+		/** When the thread started waiting on its queue. */
+		long arrival;
+
+		/** The queue the thread is waiting on, if any. */
+		DeadlineQueue queue = null;
+	}
+}
@@ -58,7 +58,7 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -198,8 +198,12 @@ public class KThread {
 		Machine.autoGrader().finishingCurrentThread();
 
 		// Child thread finishes, context switch back to parent thread
-		if (currentThread.parentThread != null)
-			currentThread.parentThread.ready();
+		// Draining the queue until it is empty also releases its ownership
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+				joiner.ready();
+		}
 		
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
@@ -255,8 +259,10 @@ public class KThread {
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
+		if (currentThread.status != statusFinished) {
 			currentThread.status = statusBlocked;
+			ThreadedKernel.scheduler.threadBlocked(currentThread);
+		}
 
 		runNextThread();
 	}
@@ -271,9 +277,14 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
+		if (DeadlockDetector.enabled)
+			DeadlockDetector.unblocked(this);
+
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -294,11 +305,22 @@ public class KThread {
 		// this == B
 
 		// B finished
-		if (this.status == statusFinished)
+		if (this.status == statusFinished) {
+			Machine.interrupt().restore(intStatus);
 			return;
+		}
 		
 		// B did not finished (context switch to B)
-		this.parentThread = currentThread;
+		// A waits on B's join queue, donating its priority to B
+		if (joinQueue == null) {
+			joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+			joinQueue.acquire(this);
+		}
+		joinQueue.waitForAccess(currentThread);
+
+		if (DeadlockDetector.enabled)
+			DeadlockDetector.blocking(this, "KThread", null);
+
 		sleep();
 
 		Machine.interrupt().restore(intStatus);
@@ -318,8 +340,13 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
-					yield();
+				while (true) {
+					// nothing can become ready until the next interrupt
+					if (numReadyThreads == 0)
+						Machine.interrupt().idle();
+
+					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -337,6 +364,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReadyThreads--;
 
 		nextThread.run();
 	}
@@ -423,12 +452,45 @@ public class KThread {
 		private int which;
 	}
 	
-	public void setWaitTime(long time) {
-		this.waitTime = time;
+	private static class PingPong implements Runnable {
+		PingPong(int rounds) {
+			this.rounds = rounds;
+		}
+
+		public void run() {
+			for (int i = 0; i < rounds; i++)
+				KThread.yield();
+		}
+
+		private int rounds;
 	}
-	
-	public long getWaitTime() {
-		return this.waitTime;
+
+	/**
+	 * Measure how quickly threads can switch, by having two threads yield
+	 * back and forth. The number of rounds each thread yields is given by
+	 * <tt>KThread.benchmarkRounds</tt>.
+	 */
+	public static void pingPongBenchmark() {
+		int rounds = Config.getInteger("KThread.benchmarkRounds", 100000);
+		Lib.assertTrue(rounds > 0, "KThread.benchmarkRounds must be positive");
+
+		KThread ping = new KThread(new PingPong(rounds)).setName("ping");
+		KThread pong = new KThread(new PingPong(rounds)).setName("pong");
+
+		long start = System.nanoTime();
+
+		ping.fork();
+		pong.fork();
+		ping.join();
+		pong.join();
+
+		long elapsed = System.nanoTime() - start;
+		long switches = 2L * rounds;
+
+		System.out.println("KThread ping-pong: " + switches + " yields in "
+				+ (elapsed / 1000000) + " ms, " + (elapsed / switches)
+				+ " ns per yield, " + (long) (switches / (elapsed / 1e9))
+				+ " yields/sec");
 	}
 
 	/**
@@ -464,6 +526,9 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/** What this thread is blocked on, if the deadlock detector is enabled. */
+	DeadlockDetector.Wait blockedOn = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -487,9 +552,8 @@ public class KThread {
 
 	private TCB tcb;
 
-	private KThread parentThread = null;
-
-	private long waitTime = 0;
+	/** The threads waiting in <tt>join()</tt> for this thread to finish. */
+	private ThreadQueue joinQueue = null;
 
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
@@ -502,6 +566,9 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads other than the idle thread in readyQueue. */
+	private static int numReadyThreads = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -23,6 +23,18 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(null);
+	}
+
+	/**
+	 * Allocate a new lock with a name, which identifies it in the lock
+	 * profile. The lock will initially be <i>free</i>.
+	 * 
+	 * @param name the name of the lock.
+	 */
+	public Lock(String name) {
+		this.name = name;
+		profile = LockProfiler.register("Lock", name);
 	}
 
 	/**
@@ -36,8 +48,17 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long waitStart = (profile != null) ? profile.startWait() : 0;
+
 			waitQueue.waitForAccess(thread);
+
+			if (DeadlockDetector.enabled)
+				DeadlockDetector.blocking(this, "Lock", name);
+
 			KThread.sleep();
+
+			if (profile != null)
+				profile.waited(thread, waitStart);
 		}
 		else {
 			waitQueue.acquire(thread);
@@ -46,9 +67,51 @@ public class Lock {
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null)
+			profile.acquired();
+
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, waiting at most <i>ticks</i> clock ticks
+	 * for it to be released. If <i>ticks</i> is not positive, do not wait at
+	 * all. The current thread must not already hold this lock.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+	 * the wait timed out.
+	 */
+	public boolean tryAcquire(long ticks) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (lockHolder != null) {
+			if (ticks > 0) {
+				long waitStart = (profile != null) ? profile.startWait() : 0;
+
+				ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+				if (profile != null)
+					profile.waited(thread, waitStart);
+			}
+		}
+		else {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+		}
+
+		boolean acquired = (lockHolder == thread);
+
+		if (acquired && profile != null)
+			profile.acquired();
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,6 +120,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.released();
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -72,8 +138,19 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the thread holding this lock, for the deadlock detector.
+	 */
+	KThread getHolder() {
+		return lockHolder;
+	}
+
+	private String name;
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	private LockProfiler profile;
 }
@@ -0,0 +1,188 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records how contended the kernel's locks, semaphores and condition
+ * variables are. Profiling is enabled by <tt>LockProfiler.enabled</tt>, and
+ * the report is printed when the kernel terminates.
+ *
+ * <p>
+ * Each synchronization primitive asks for a profile when it is created. When
+ * profiling is disabled it gets <tt>null</tt>, and only pays for a
+ * <tt>null</tt> check on each operation. Otherwise its profile counts how
+ * often it was acquired, how often a thread had to wait, the total and
+ * per-thread ticks spent waiting, and for locks, the longest time it was
+ * held.
+ *
+ * <p>
+ * All methods must be called with interrupts disabled.
+ */
+public class LockProfiler {
+	/**
+	 * Return a new profile for a synchronization primitive, or <tt>null</tt>
+	 * if profiling is disabled.
+	 *
+	 * @param kind the kind of primitive, e.g. <tt>"Lock"</tt>.
+	 * @param name the name of the primitive, or <tt>null</tt> to number it.
+	 * @return the new profile, or <tt>null</tt>.
+	 */
+	static LockProfiler register(String kind, String name) {
+		if (!enabled)
+			return null;
+
+		if (name == null)
+			name = "#" + profiles.size();
+
+		LockProfiler profile = new LockProfiler(kind, name);
+		profiles.add(profile);
+		return profile;
+	}
+
+	private LockProfiler(String kind, String name) {
+		this.kind = kind;
+		this.name = name;
+	}
+
+	/**
+	 * Return the time at which the current thread starts waiting.
+	 *
+	 * @return the current time.
+	 */
+	long startWait() {
+		return Machine.timer().getTime();
+	}
+
+	/**
+	 * Record that <i>thread</i> stopped waiting, whether or not it then
+	 * acquired the primitive.
+	 *
+	 * @param thread the thread that waited.
+	 * @param start the value returned by <tt>startWait()</tt>.
+	 */
+	void waited(KThread thread, long start) {
+		long ticks = Machine.timer().getTime() - start;
+
+		contended++;
+		waitTicks += ticks;
+
+		Long total = waitTicksByThread.get(thread);
+		waitTicksByThread.put(thread, (total == null) ? ticks : total + ticks);
+	}
+
+	/**
+	 * Record an acquisition, which starts the hold time.
+	 */
+	void acquired() {
+		acquisitions++;
+		holdStart = Machine.timer().getTime();
+	}
+
+	/**
+	 * Record an acquisition that is not released by the thread that made it,
+	 * and so does not start the hold time: a read of a read-write lock, a
+	 * <tt>P()</tt> on a semaphore, or a wakeup on a condition variable.
+	 */
+	void acquiredUnheld() {
+		acquisitions++;
+	}
+
+	/**
+	 * Record a release, which ends the hold time started by the last
+	 * <tt>acquired()</tt>.
+	 */
+	void released() {
+		maxHold = Math.max(maxHold, Machine.timer().getTime() - holdStart);
+	}
+
+	/**
+	 * Print a line for every profiled primitive that was used, the most time
+	 * spent waiting first. Does nothing if profiling is disabled.
+	 */
+	public static void print() {
+		if (!enabled)
+			return;
+
+		ArrayList<LockProfiler> used = new ArrayList<LockProfiler>();
+		for (LockProfiler profile : profiles) {
+			if (profile.acquisitions > 0 || profile.contended > 0)
+				used.add(profile);
+		}
+
+		Collections.sort(used, new Comparator<LockProfiler>() {
+			public int compare(LockProfiler a, LockProfiler b) {
+				return Long.compare(b.waitTicks, a.waitTicks);
+			}
+		});
+
+		System.out.println("Lock profile: " + used.size() + " of "
+				+ profiles.size() + " primitives used");
+
+		for (LockProfiler profile : used)
+			System.out.println(profile);
+	}
+
+	public String toString() {
+		String s = kind + " " + name + ": acquired " + acquisitions
+				+ ", contended " + contended + ", waited " + waitTicks
+				+ " ticks";
+
+		if (maxHold > 0)
+			s += ", held at most " + maxHold + " ticks";
+
+		if (!waitTicksByThread.isEmpty())
+			s += ", top waiters " + topWaiters();
+
+		return s;
+	}
+
+	/**
+	 * Return the threads that waited longest, with their ticks.
+	 */
+	private String topWaiters() {
+		ArrayList<Map.Entry<KThread, Long>> waiters = new ArrayList<Map.Entry<KThread, Long>>(
+				waitTicksByThread.entrySet());
+
+		Collections.sort(waiters, new Comparator<Map.Entry<KThread, Long>>() {
+			public int compare(Map.Entry<KThread, Long> a,
+					Map.Entry<KThread, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+
+		String s = "";
+		for (int i = 0; i < Math.min(numTopWaiters, waiters.size()); i++) {
+			Map.Entry<KThread, Long> waiter = waiters.get(i);
+			s += (i > 0 ? ", " : "") + waiter.getKey() + " ("
+					+ waiter.getValue() + ")";
+		}
+
+		return s;
+	}
+
+	private static final boolean enabled = Config.getBoolean(
+			"LockProfiler.enabled", false);
+
+	private static final int numTopWaiters = 3;
+
+	private static ArrayList<LockProfiler> profiles = new ArrayList<LockProfiler>();
+
+	private String kind, name;
+
+	private long acquisitions = 0;
+
+	/** The number of times a thread had to wait. */
+	private long contended = 0;
+
+	private long waitTicks = 0;
+
+	private long holdStart, maxHold = 0;
+
+	private HashMap<KThread, Long> waitTicksByThread = new HashMap<KThread, Long>();
+}
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -41,7 +42,210 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this
+	 * value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change
+	 * this value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change
+	 * this value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	protected int getMinimumPriority() {
+		return priorityMinimum;
+	}
+
+	protected int getMaximumPriority() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * The tickets of the waiting threads are kept in a Fenwick tree indexed
+	 * by slot, so that drawing the winner and changing the tickets of a
+	 * waiting thread both take O(log <i>n</i>) time. Sums are kept as longs,
+	 * so a queue may hold any number of threads with up to
+	 * <tt>priorityMaximum</tt> tickets each.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads and return the winner.
+		 * Each call holds a new lottery.
+		 * 
+		 * @return the thread holding the winning ticket.
+		 */
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long winner = Lib.random(totalTickets);
+
+			// descend the tree to the slot whose ticket range holds winner
+			int position = 0;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (position + step <= slots.length
+						&& tree[position + step] <= winner) {
+					position += step;
+					winner -= tree[position];
+				}
+			}
+
+			Lib.assertTrue(position < size);
+			return slots[position];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(slots[i].thread + "(" + tickets[i] + ") ");
+		}
+
+		void add(ThreadState state) {
+			if (size == slots.length)
+				grow();
+
+			state.heapIndex = size;
+			slots[size] = state;
+			setTickets(size, state.effectivePriority);
+			size++;
+		}
+
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(index < size && slots[index] == state);
+
+			// move the last thread into the vacated slot
+			int last = --size;
+			setTickets(index, 0);
+			if (index != last) {
+				long moved = tickets[last];
+				setTickets(last, 0);
+
+				slots[index] = slots[last];
+				slots[index].heapIndex = index;
+				setTickets(index, moved);
+			}
+			slots[last] = null;
+
+			state.heapIndex = -1;
+			state.waitQueue = null;
+
+			if (transferPriority && owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		void update(ThreadState state) {
+			setTickets(state.heapIndex, state.effectivePriority);
+		}
+
+		/**
+		 * Return the total number of tickets held by the waiting threads,
+		 * which are all donated to the owner.
+		 * 
+		 * @return the number of tickets donated by this queue, at most
+		 * <tt>priorityMaximum</tt>.
+		 */
+		int getDonatedPriority() {
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		private void setTickets(int slot, long count) {
+			long delta = count - tickets[slot];
+			if (delta == 0)
+				return;
+
+			tickets[slot] = count;
+			totalTickets += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int capacity = slots.length * 2;
+
+			slots = Arrays.copyOf(slots, capacity);
+			tickets = Arrays.copyOf(tickets, capacity);
+			tree = new long[capacity + 1];
+
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i - 1];
+
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/** The waiting threads; always a power of two in length. */
+		private ThreadState[] slots = new ThreadState[8];
+
+		/** The number of tickets each slot holds in the tree. */
+		private long[] tickets = new long[8];
+
+		/** The Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+		private long[] tree = new long[9];
+
+		private int size = 0;
+
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The effective
+	 * priority of a thread is the number of tickets it holds: its own tickets
+	 * plus all the tickets donated through the queues it owns.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		protected int computeEffectivePriority() {
+			long effective = priority;
+			for (PriorityQueue queue : ownedQueues)
+				effective += queue.getDonatedPriority();
+
+			return (int) Math.min(effective, priorityMaximum);
+		}
 	}
 }
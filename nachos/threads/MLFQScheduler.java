@@ -0,0 +1,328 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Ready threads are kept in several
+ * FIFO queues, one per level, and the next thread to run is always taken from
+ * the highest (lowest-numbered) non-empty level.
+ *
+ * <p>
+ * Each level has a quantum, measured in timer interrupts, that doubles from
+ * one level to the next. A thread that runs for its whole quantum without
+ * blocking is moved down a level, so CPU-bound threads sink to the long
+ * quanta at the bottom, while a thread that blocks (in a semaphore, a
+ * condition variable, a join, or on console I/O) moves up a level. A timer
+ * interrupt only preempts the running thread once its quantum has expired, or
+ * if a thread at a higher level is ready.
+ *
+ * <p>
+ * To keep CPU-bound threads from starving, every thread is periodically
+ * boosted back to the top level.
+ *
+ * <p>
+ * The number of levels, the quantum of the top level, and the number of timer
+ * interrupts between boosts are given by <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt>, and <tt>MLFQScheduler.boostInterval</tt>.
+ * Threads waiting on other queues are woken in FIFO order; the levels only
+ * order the ready queue.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50);
+
+		Lib.assertTrue(numLevels > 0 && numLevels < 31);
+		Lib.assertTrue(quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not donate
+	 * priority.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FifoQueue();
+	}
+
+	/**
+	 * Allocate the multi-level ready queue.
+	 *
+	 * @return the ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new MultiLevelQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Return the level of the specified thread; 0 is the highest level.
+	 *
+	 * @param thread the thread to get the priority of.
+	 * @return the thread's level.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).level;
+	}
+
+	/**
+	 * Charge the running thread for one timer interrupt, and boost all threads
+	 * if it is time to. If the thread has used up its quantum, move it down a
+	 * level and preempt it; otherwise only preempt it if a thread at a higher
+	 * level is ready.
+	 */
+	public boolean shouldPreempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (++timerInterrupts % boostInterval == 0)
+			boost();
+
+		ThreadState state = getThreadState(thread);
+
+		if (++state.used >= (quantum << state.level)) {
+			if (state.level < numLevels - 1)
+				state.level++;
+			state.used = 0;
+
+			return true;
+		}
+
+		return readyQueue.highestLevel() < state.level;
+	}
+
+	/**
+	 * Move a thread that blocked before using up its quantum up a level, and
+	 * give it a fresh quantum.
+	 */
+	public void threadBlocked(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+
+		if (state.level > 0)
+			state.level--;
+		state.used = 0;
+	}
+
+	/**
+	 * Move every thread back to the top level. Threads in the ready queue are
+	 * moved now; all other threads are moved the next time their state is
+	 * looked up.
+	 */
+	private void boost() {
+		boostEpoch++;
+
+		if (readyQueue != null)
+			readyQueue.boost();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread, first moving it to
+	 * the top level if a boost happened since it was last looked up.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.epoch != boostEpoch) {
+			state.level = 0;
+			state.used = 0;
+			state.epoch = boostEpoch;
+		}
+
+		return state;
+	}
+
+	/**
+	 * The ready queue, which keeps one FIFO list of threads per level.
+	 */
+	private class MultiLevelQueue extends ThreadQueue {
+		MultiLevelQueue() {
+			// arrays of a generic type can only be created raw
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			LinkedHashSet<KThread>[] sets = new LinkedHashSet[numLevels];
+			levels = sets;
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new LinkedHashSet<KThread>();
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			levels[getThreadState(thread).level].add(thread);
+		}
+
+		/**
+		 * Remove the first thread of the highest non-empty level.
+		 *
+		 * @return the next thread to run, or <tt>null</tt> if the queue is
+		 * empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int level = highestLevel();
+			if (level == numLevels)
+				return null;
+
+			Iterator<KThread> i = levels[level].iterator();
+			KThread thread = i.next();
+			i.remove();
+
+			return thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return levels[getThreadState(thread).level].remove(thread);
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(highestLevel() == numLevels);
+		}
+
+		/**
+		 * Print out the contents of the queue, one level at a time.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				System.out.print("[" + i + "] ");
+				for (KThread thread : levels[i])
+					System.out.print(thread + " ");
+			}
+		}
+
+		/**
+		 * Return the highest level that has a ready thread.
+		 *
+		 * @return the lowest-numbered non-empty level, or <tt>numLevels</tt>
+		 * if the queue is empty.
+		 */
+		int highestLevel() {
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty())
+					return i;
+			}
+
+			return numLevels;
+		}
+
+		/**
+		 * Move every waiting thread to the end of the top level, keeping
+		 * their order.
+		 */
+		void boost() {
+			for (int i = 0; i < numLevels; i++) {
+				for (KThread thread : levels[i])
+					getThreadState(thread);
+
+				if (i > 0) {
+					levels[0].addAll(levels[i]);
+					levels[i].clear();
+				}
+			}
+		}
+
+		private LinkedHashSet<KThread>[] levels;
+	}
+
+	private class FifoQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			waitQueue.add(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (waitQueue.isEmpty())
+				return null;
+
+			Iterator<KThread> i = waitQueue.iterator();
+			KThread thread = i.next();
+			i.remove();
+
+			return thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waitQueue.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (KThread thread : waitQueue)
+				System.out.print(thread + " ");
+		}
+
+		private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/** The level of the thread; 0 is the highest. */
+		int level = 0;
+
+		/** The number of timer interrupts charged against the quantum. */
+		int used = 0;
+
+		/** The boost that last moved this thread to the top level. */
+		long epoch = boostEpoch;
+	}
+
+	private int numLevels;
+
+	private int quantum;
+
+	private int boostInterval;
+
+	private MultiLevelQueue readyQueue = null;
+
+	private long timerInterrupts = 0;
+
+	private long boostEpoch = 0;
+}
@@ -2,9 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -59,8 +61,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getMinimumPriority()
+				&& priority <= getMaximumPriority());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +74,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getMaximumPriority())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +90,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getMinimumPriority())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -112,6 +114,24 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Return the lowest priority a thread may be given.
+	 * 
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	protected int getMinimumPriority() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the highest priority a thread may be given.
+	 * 
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	protected int getMaximumPriority() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -126,7 +146,10 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+	 * threads are kept in a binary heap ordered by effective priority, and
+	 * then by the order in which they started waiting, so that
+	 * <tt>nextThread()</tt> takes O(log <i>n</i>) time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -143,10 +166,33 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+
+			if (next == null) {
+				// nobody gets the resource, so the owner stops owning it
+				if (owner != null)
+					owner.release(this);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +202,126 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Add a thread to the heap.
+		 * 
+		 * @param state the scheduling state of the thread.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			state.arrival = numArrivals++;
+			state.heapIndex = size;
+			heap[size++] = state;
+
+			siftUp(state.heapIndex);
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 * 
+		 * @param state the scheduling state of the thread.
+		 */
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(index < size && heap[index] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			state.heapIndex = -1;
+			state.waitQueue = null;
+
+			if (last != state) {
+				heap[index] = last;
+				last.heapIndex = index;
+				update(last);
+			}
+
+			if (transferPriority && owner != null)
+				owner.updateEffectivePriority();
+		}
+
+		/**
+		 * Restore the heap order after the effective priority of a waiting
+		 * thread has changed.
+		 * 
+		 * @param state the scheduling state of the thread.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, which
+		 * is the priority donated to the owner.
+		 * 
+		 * @return the priority donated by this queue.
+		 */
+		int getDonatedPriority() {
+			return (size == 0) ? priorityMinimum : heap[0].effectivePriority;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <tt>a</tt> should be dequeued before
+		 * <tt>b</tt>.
+		 */
+		boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+			else
+				return a.arrival < b.arrival;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
 		}
 
 		/**
@@ -170,6 +329,19 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if this queue transfers
+		 * priority.
+		 */
+		ThreadState owner = null;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/** Orders threads of equal priority by when they started waiting. */
+		private long numArrivals = 0;
 	}
 
 	/**
@@ -207,8 +379,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +393,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +409,13 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +429,73 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			ownedQueues.add(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread no longer owns the resource
+		 * guarded by <tt>waitQueue</tt>, so that it stops receiving the
+		 * priority donated through it.
+		 * 
+		 * @param waitQueue the queue the associated thread owned.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			ownedQueues.remove(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and if it
+		 * changed, reposition the thread in the queue it is waiting on and
+		 * pass the change along to the owner of that queue. Only the threads
+		 * along the donation chain are visited, and the walk stops as soon as
+		 * an effective priority does not change.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.computeEffectivePriority();
+
+				if (effective == state.effectivePriority)
+					break;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitQueue;
+				if (queue == null)
+					break;
+
+				queue.update(state);
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/**
+		 * Compute the effective priority of the associated thread from its
+		 * own priority and the priorities donated through the queues it owns.
+		 * 
+		 * @return the effective priority of the associated thread.
+		 */
+		protected int computeEffectivePriority() {
+			int effective = priority;
+			for (PriorityQueue queue : ownedQueues)
+				effective = Math.max(effective, queue.getDonatedPriority());
+
+			return effective;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +503,24 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/**
+		 * The cached effective priority of the associated thread, which is
+		 * its own priority or the highest priority donated to it through the
+		 * queues it owns.
+		 */
+		protected int effectivePriority = priorityMinimum;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The queues that donate priority to the associated thread. */
+		protected LinkedList<PriorityQueue> ownedQueues = new LinkedList<PriorityQueue>();
+
+		/** The position of the associated thread in waitQueue. */
+		int heapIndex = -1;
+
+		/** When the associated thread started waiting on waitQueue. */
+		long arrival;
 	}
 }
@@ -0,0 +1,607 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets many threads read a shared structure at once,
+ * while a thread that writes to it has exclusive access. There are three ways
+ * to hold the lock:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: share the lock with other readers.
+ * <li><tt>acquireWrite()</tt>: exclude every other thread.
+ * <li><tt>acquireUpgradeable()</tt>: share the lock with readers, but exclude
+ * writers and other upgradeable readers. An upgradeable reader can later call
+ * <tt>upgrade()</tt> to become the writer without releasing the lock, so
+ * that it can read a structure and then modify it based on what it read.
+ * </ul>
+ *
+ * <p>
+ * Writers and upgradeable readers wait for their turn on a queue that
+ * transfers priority, so the thread holding exclusive or upgradeable access
+ * receives the priority of the threads waiting for it, as with a
+ * <tt>Lock</tt>. While that thread waits for the readers to leave, it donates
+ * its own priority to one of the readers at a time. Only one thread runs at a
+ * time, and every reader must leave before the thread can write, so raising
+ * them one after another is as good as raising them all.
+ *
+ * <p>
+ * With <i>writer preference</i>, a thread that wants to write is waited for
+ * by readers that arrive after it, so a steady stream of readers cannot
+ * starve writers. Without it, readers are admitted whenever no thread is
+ * writing, and a writer waits until there are no readers at all.
+ *
+ * <p>
+ * As with a <tt>Lock</tt>, only the thread that acquired the lock may release
+ * it, and a thread must not acquire the lock again while it holds it.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock, giving preference to writers if
+	 * <tt>ReadWriteLock.writerPreference</tt> is set (the default). The lock
+	 * will initially be free.
+	 */
+	public ReadWriteLock() {
+		this((String) null);
+	}
+
+	/**
+	 * Allocate a new read-write lock with a name, which identifies it in the
+	 * lock profile, giving preference to writers if
+	 * <tt>ReadWriteLock.writerPreference</tt> is set.
+	 *
+	 * @param name the name of the lock.
+	 */
+	public ReadWriteLock(String name) {
+		this(Config.getBoolean("ReadWriteLock.writerPreference", true), name);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param writerPreference <tt>true</tt> if readers should wait for
+	 * writers that are waiting for the lock.
+	 */
+	public ReadWriteLock(boolean writerPreference) {
+		this(writerPreference, null);
+	}
+
+	/**
+	 * Allocate a new named read-write lock. The lock will initially be free.
+	 *
+	 * @param writerPreference <tt>true</tt> if readers should wait for
+	 * writers that are waiting for the lock.
+	 * @param name the name of the lock.
+	 */
+	public ReadWriteLock(boolean writerPreference, String name) {
+		this.writerPreference = writerPreference;
+		this.name = name;
+		profile = LockProfiler.register("ReadWriteLock", name);
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a thread is writing (or,
+	 * with writer preference, waiting to write).
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isExclusiveHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (readersBlocked()) {
+			long waitStart = (profile != null) ? profile.startWait() : 0;
+
+			waitingReaders++;
+			readQueue.waitForAccess(KThread.currentThread());
+			block(this);
+
+			if (profile != null)
+				profile.waited(KThread.currentThread(), waitStart);
+		}
+		else {
+			readers.add(KThread.currentThread());
+		}
+
+		if (profile != null)
+			profile.acquiredUnheld();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		boolean wasReading = readers.remove(thread);
+		Lib.assertTrue(wasReading);
+
+		if (thread == donee)
+			endDonation();
+
+		if (draining) {
+			// the last reader out lets a waiting writer in
+			if (readers.isEmpty()) {
+				draining = false;
+				writing = true;
+				owner.ready();
+			}
+			else if (donee == null) {
+				donateToReader();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no other thread holds it.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isExclusiveHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		long waitStart = (profile != null) ? profile.startWait() : 0;
+		boolean waited = true;
+
+		if (owner != null) {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			block(this);
+		}
+		else {
+			writeQueue.acquire(thread);
+			owner = thread;
+			waited = waitForReaders();
+		}
+
+		Lib.assertTrue(owner == thread && writing);
+
+		if (profile != null) {
+			if (waited)
+				profile.waited(thread, waitStart);
+			profile.acquired();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after writing. This also releases a lock that was
+	 * upgraded.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (profile != null)
+			profile.released();
+
+		releaseExclusive();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock as an upgradeable reader, waiting while a writer or
+	 * another upgradeable reader holds it.
+	 */
+	public void acquireUpgradeable() {
+		Lib.assertTrue(!isExclusiveHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (owner != null) {
+			long waitStart = (profile != null) ? profile.startWait() : 0;
+
+			upgradeWaiters.add(thread);
+			writeQueue.waitForAccess(thread);
+			block(this);
+
+			if (profile != null)
+				profile.waited(thread, waitStart);
+		}
+		else {
+			writeQueue.acquire(thread);
+			owner = thread;
+		}
+
+		Lib.assertTrue(owner == thread && !writing);
+
+		if (profile != null)
+			profile.acquired();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock as an upgradeable reader, without having upgraded
+	 * it.
+	 */
+	public void releaseUpgradeable() {
+		Lib.assertTrue(isExclusiveHeldByCurrentThread() && !writing);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (profile != null)
+			profile.released();
+
+		releaseExclusive();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Turn the current thread's upgradeable read access into write access,
+	 * waiting for the other readers to finish. No writer can have modified
+	 * the structure in between.
+	 */
+	public void upgrade() {
+		Lib.assertTrue(isExclusiveHeldByCurrentThread() && !writing);
+
+		boolean intStatus = Machine.interrupt().disable();
+		long waitStart = (profile != null) ? profile.startWait() : 0;
+
+		if (waitForReaders() && profile != null)
+			profile.waited(KThread.currentThread(), waitStart);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Turn the current thread's write access into upgradeable read access,
+	 * letting waiting readers in.
+	 */
+	public void downgrade() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writing = false;
+		admitReaders();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return isExclusiveHeldByCurrentThread() && writing;
+	}
+
+	/**
+	 * Return the writer or upgradeable reader holding this lock, for the
+	 * deadlock detector.
+	 */
+	KThread getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing or as an
+	 * upgradeable reader.
+	 */
+	private boolean isExclusiveHeldByCurrentThread() {
+		return owner == KThread.currentThread();
+	}
+
+	/**
+	 * Return <tt>true</tt> if a thread that wants to read must wait.
+	 */
+	private boolean readersBlocked() {
+		if (writing)
+			return true;
+
+		return writerPreference && (draining || waitingWriters > 0);
+	}
+
+	/**
+	 * Sleep until woken, telling the deadlock detector what the thread is
+	 * waiting for.
+	 */
+	private void block(Object resource) {
+		if (DeadlockDetector.enabled)
+			DeadlockDetector.blocking(resource, "ReadWriteLock", name);
+
+		KThread.sleep();
+	}
+
+	/**
+	 * Give the owner write access, sleeping first until the readers have
+	 * left if there are any.
+	 *
+	 * @return <tt>true</tt> if the owner had to wait.
+	 */
+	private boolean waitForReaders() {
+		if (!readers.isEmpty()) {
+			draining = true;
+			donateToReader();
+			// waiting for the readers, who are not known to the detector
+			block(readQueue);
+			return true;
+		}
+		else {
+			writing = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Pass exclusive access to the next writer or upgradeable reader, if any
+	 * are waiting, and let in whichever readers may now run. Must be called
+	 * with interrupts disabled.
+	 */
+	private void releaseExclusive() {
+		writing = false;
+
+		owner = writeQueue.nextThread();
+		if (owner != null) {
+			if (upgradeWaiters.remove(owner)) {
+				owner.ready();
+			}
+			else {
+				waitingWriters--;
+
+				// without writer preference, the waiting readers go first
+				if (!readers.isEmpty()
+						|| (!writerPreference && waitingReaders > 0)) {
+					draining = true;
+				}
+				else {
+					writing = true;
+					owner.ready();
+				}
+			}
+		}
+
+		admitReaders();
+
+		if (draining)
+			donateToReader();
+	}
+
+	/**
+	 * Have the owner, which is waiting for the readers to leave, donate its
+	 * priority to one of them. Must be called with interrupts disabled.
+	 */
+	private void donateToReader() {
+		Lib.assertTrue(donee == null && !readers.isEmpty());
+
+		donee = readers.iterator().next();
+		donationQueue.acquire(donee);
+		donationQueue.waitForAccess(owner);
+	}
+
+	/**
+	 * Stop the owner's donation to the reader that is leaving. Must be called
+	 * with interrupts disabled.
+	 */
+	private void endDonation() {
+		donationQueue.remove(owner);
+
+		// no thread is waiting, so this only takes the queue from the donee
+		KThread next = donationQueue.nextThread();
+		Lib.assertTrue(next == null);
+		donee = null;
+	}
+
+	/**
+	 * Wake every waiting reader, if readers are not blocked. Must be called
+	 * with interrupts disabled.
+	 */
+	private void admitReaders() {
+		if (readersBlocked())
+			return;
+
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			waitingReaders--;
+			readers.add(thread);
+			thread.ready();
+		}
+	}
+
+	/**
+	 * Test this module. Several readers hold the lock at once; a writer
+	 * excludes them; an upgradeable reader upgrades while readers finish;
+	 * with writer preference, a reader arriving after a waiting writer waits
+	 * for it; and with a priority scheduler, a reader receives the priority
+	 * of a writer waiting for it.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock(true);
+		final int[] active = new int[2];
+		final int[] maxReaders = new int[1];
+		final StringBuffer order = new StringBuffer();
+		final int[] acquisitions = new int[1];
+
+		// r r u start together; w arrives while they read, and the last r
+		// arrives after w, so it must wait for w
+		String kinds = "rruwr";
+		int[] delays = { 0, 0, 0, 2000, 4000 };
+		final int[] rank = new int[kinds.length()];
+
+		class Worker implements Runnable {
+			Worker(int index, char kind, int hold) {
+				this.index = index;
+				this.kind = kind;
+				this.hold = hold;
+			}
+
+			public void run() {
+				if (kind == 'r')
+					lock.acquireRead();
+				else if (kind == 'w')
+					lock.acquireWrite();
+				else
+					lock.acquireUpgradeable();
+
+				order.append(kind);
+				rank[index] = acquisitions[0]++;
+
+				if (kind == 'w') {
+					Lib.assertTrue(active[0] == 0 && active[1] == 0,
+							"writer is not alone");
+					active[1]++;
+				}
+				else {
+					Lib.assertTrue(active[1] == 0, "reader with a writer");
+					active[0]++;
+					maxReaders[0] = Math.max(maxReaders[0], active[0]);
+				}
+
+				ThreadedKernel.alarm.waitUntil(hold);
+
+				if (kind == 'u') {
+					active[0]--;
+					lock.upgrade();
+					Lib.assertTrue(active[0] == 0 && active[1] == 0,
+							"upgraded with other holders");
+					order.append('U');
+					active[1]++;
+					ThreadedKernel.alarm.waitUntil(hold);
+				}
+
+				if (kind == 'r') {
+					active[0]--;
+					lock.releaseRead();
+				}
+				else {
+					active[1]--;
+					lock.releaseWrite();
+				}
+			}
+
+			private int index;
+
+			private char kind;
+
+			private int hold;
+		}
+
+		KThread[] threads = new KThread[kinds.length()];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(new Worker(i, kinds.charAt(i), 10000))
+					.setName("rw " + kinds.charAt(i) + i);
+		}
+
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < threads.length; i++) {
+			long delay = start + delays[i] - Machine.timer().getTime();
+			if (delay > 0)
+				ThreadedKernel.alarm.waitUntil(delay);
+			threads[i].fork();
+		}
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		// the order of the first three depends on the scheduler, but the
+		// late reader must come after the writer it arrived behind
+		Lib.assertTrue(maxReaders[0] >= 3, "readers did not share the lock");
+		Lib.assertTrue(rank[4] > rank[3], "reader overtook a waiting writer "
+				+ order);
+
+		System.out.println("ReadWriteLock: order " + order + ", up to "
+				+ maxReaders[0] + " readers at once");
+
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler)
+			donationTest(lock);
+	}
+
+	/**
+	 * Check that a reader receives the priority of a writer that is waiting
+	 * for it to leave.
+	 */
+	private static void donationTest(final ReadWriteLock lock) {
+		final KThread writer = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireWrite();
+				lock.releaseWrite();
+			}
+		}).setName("rw high w");
+
+		final boolean[] donated = new boolean[1];
+
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+
+				boolean intStatus = Machine.interrupt().disable();
+				ThreadedKernel.scheduler.setPriority(writer,
+						PriorityScheduler.priorityMaximum);
+				Machine.interrupt().restore(intStatus);
+
+				writer.fork();
+				while (!lock.draining)
+					KThread.yield();
+
+				intStatus = Machine.interrupt().disable();
+				donated[0] = ThreadedKernel.scheduler.getEffectivePriority()
+						>= PriorityScheduler.priorityMaximum;
+				Machine.interrupt().restore(intStatus);
+
+				lock.releaseRead();
+			}
+		}).setName("rw low r");
+
+		reader.fork();
+		reader.join();
+		writer.join();
+
+		Lib.assertTrue(donated[0],
+				"reader did not receive the writer's priority");
+		System.out.println("ReadWriteLock: a reader received the priority of "
+				+ "a waiting writer");
+	}
+
+	private boolean writerPreference;
+
+	private String name;
+
+	/** The threads holding this lock for reading. */
+	private HashSet<KThread> readers = new HashSet<KThread>();
+
+	private int waitingReaders = 0;
+
+	private int waitingWriters = 0;
+
+	/** The writer or upgradeable reader holding this lock, if any. */
+	private KThread owner = null;
+
+	/** Whether the owner has write access. */
+	private boolean writing = false;
+
+	/** Whether the owner is waiting for readers to leave to start writing. */
+	private boolean draining = false;
+
+	/** The threads in <tt>writeQueue</tt> that want upgradeable access. */
+	private HashSet<KThread> upgradeWaiters = new HashSet<KThread>();
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	/** The reader the owner is donating its priority to, if any. */
+	private KThread donee = null;
+
+	/**
+	 * Acquired by <tt>donee</tt> and waited on by the owner, so that the
+	 * owner's priority reaches the reader.
+	 */
+	private ThreadQueue donationQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	private LockProfiler profile;
+}
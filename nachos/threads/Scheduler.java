@@ -50,6 +50,43 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads that are ready to run. This is called once,
+	 * when the first <tt>KThread</tt> is created. By default the ready queue is
+	 * an ordinary queue that does not transfer priority, but a scheduler that
+	 * needs to tell the ready queue apart from other queues may override this.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Decide whether the specified thread, which is running when a timer
+	 * interrupt occurs, should yield the processor. Must be called with
+	 * interrupts disabled. By default every timer interrupt preempts the
+	 * running thread.
+	 * 
+	 * @param thread the running thread.
+	 * @return <tt>true</tt> if the thread should yield.
+	 */
+	public boolean shouldPreempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
+
+	/**
+	 * Notify this scheduler that the specified thread has blocked, for example
+	 * in <tt>Semaphore.P()</tt> or <tt>Condition.sleep()</tt>. Must be called
+	 * with interrupts disabled. By default this does nothing.
+	 * 
+	 * @param thread the thread that blocked.
+	 */
+	public void threadBlocked(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
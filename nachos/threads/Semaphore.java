@@ -28,26 +28,100 @@ public class Semaphore {
 	 * @param initialValue the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, null);
+	}
+
+	/**
+	 * Allocate a new semaphore with a name, which identifies it in the lock
+	 * profile.
+	 * 
+	 * @param initialValue the initial value of this semaphore.
+	 * @param name the name of the semaphore.
+	 */
+	public Semaphore(int initialValue, String name) {
 		value = initialValue;
+		this.name = name;
+		profile = LockProfiler.register("Semaphore", name);
 	}
 
 	/**
 	 * Atomically wait for this semaphore to become non-zero and decrement it.
 	 */
 	public void P() {
+		P(null);
+	}
+
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * expecting <i>signaller</i> to be the thread that increments it. The
+	 * deadlock detector then treats the wait as a wait for that thread.
+	 * 
+	 * @param signaller the thread expected to call <tt>V()</tt>, or
+	 * <tt>null</tt> if it may be any thread.
+	 */
+	public void P(KThread signaller) {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			long waitStart = (profile != null) ? profile.startWait() : 0;
+
 			waitQueue.waitForAccess(KThread.currentThread());
+
+			if (DeadlockDetector.enabled)
+				DeadlockDetector.blocking(this, signaller, "Semaphore", name);
+
 			KThread.sleep();
+
+			if (profile != null)
+				profile.waited(KThread.currentThread(), waitStart);
 		}
 		else {
 			value--;
 		}
 
+		if (profile != null)
+			profile.acquiredUnheld();
+
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait at most <i>ticks</i> clock ticks for this semaphore to
+	 * become non-zero, and decrement it if it does. If <i>ticks</i> is not
+	 * positive, do not wait at all.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the semaphore was decremented, or
+	 * <tt>false</tt> if the wait timed out.
+	 */
+	public boolean tryP(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean acquired = true;
+
+		if (value == 0) {
+			if (ticks > 0) {
+				long waitStart = (profile != null) ? profile.startWait() : 0;
+
+				acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+				if (profile != null)
+					profile.waited(KThread.currentThread(), waitStart);
+			}
+			else {
+				acquired = false;
+			}
+		}
+		else {
+			value--;
+		}
+
+		if (acquired && profile != null)
+			profile.acquiredUnheld();
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -101,6 +175,10 @@ public class Semaphore {
 
 	private int value;
 
+	private String name;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
+
+	private LockProfiler profile;
 }
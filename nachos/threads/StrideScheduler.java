@@ -0,0 +1,387 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that divides the processor among threads in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler gives each thread a <i>stride</i> inversely proportional
+ * to its tickets, and a <i>pass</i> value. The ready thread with the lowest
+ * pass runs next, and while it runs its pass advances by its stride for every
+ * clock tick. Over any interval, each thread receives processor time in
+ * proportion to its tickets, to within about one quantum.
+ *
+ * <p>
+ * The ready queue also keeps a global pass, which advances at the rate of a
+ * thread holding all the active tickets. When a thread blocks it remembers how
+ * far its pass was from the global pass, and when it becomes ready again it
+ * resumes the same distance from the global pass, so a thread neither gains
+ * nor loses its share by sleeping.
+ *
+ * <p>
+ * Queues other than the ready queue are ordered by tickets, and tickets are
+ * donated through locks and joins as in a priority scheduler.
+ */
+public class StrideScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate the ready queue, which is ordered by pass.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new StrideQueue();
+	}
+
+	/**
+	 * Fork several busy threads with different numbers of tickets, let them
+	 * compete for the processor, and report the clock ticks each thread
+	 * received against its fair share. The number of threads and the length
+	 * of the run are given by <tt>StrideScheduler.benchmarkThreads</tt> and
+	 * <tt>StrideScheduler.benchmarkTicks</tt>; thread <i>i</i> gets
+	 * <i>i</i>+1 tickets.
+	 */
+	public static void fairnessBenchmark() {
+		int numThreads = Config.getInteger("StrideScheduler.benchmarkThreads", 4);
+		int duration = Config.getInteger("StrideScheduler.benchmarkTicks", 500000);
+
+		Spinner[] spinners = new Spinner[numThreads];
+		KThread[] threads = new KThread[numThreads];
+
+		long end = Machine.timer().getTime() + duration;
+
+		for (int i = 0; i < numThreads; i++) {
+			spinners[i] = new Spinner(end);
+			threads[i] = new KThread(spinners[i]).setName("spinner " + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(threads[i], i + 1);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		long totalTicks = 0, totalShares = 0;
+		for (int i = 0; i < numThreads; i++) {
+			totalTicks += spinners[i].ticks;
+			totalShares += i + 1;
+		}
+
+		double worst = 0;
+		for (int i = 0; i < numThreads; i++) {
+			double expected = (double) totalTicks * (i + 1) / totalShares;
+			double error = (spinners[i].ticks - expected) / expected;
+			worst = Math.max(worst, Math.abs(error));
+
+			System.out.println("Fairness: " + threads[i] + ", tickets "
+					+ (i + 1) + ": " + spinners[i].ticks + " ticks, expected "
+					+ (long) expected + " ("
+					+ String.format("%+.1f", error * 100) + "%)");
+		}
+
+		System.out.println("Fairness: worst error "
+				+ String.format("%.1f", worst * 100) + "%");
+	}
+
+	private static class Spinner implements Runnable {
+		Spinner(long end) {
+			this.end = end;
+		}
+
+		/**
+		 * Busy-wait until the end of the run. Every pass through the loop
+		 * enables interrupts once, which advances the clock by one kernel
+		 * tick while this thread is running.
+		 */
+		public void run() {
+			while (Machine.timer().getTime() < end) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+				ticks += Stats.KernelTick;
+			}
+		}
+
+		private long end;
+
+		long ticks = 0;
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this
+	 * value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change
+	 * this value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change
+	 * this value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The stride of a thread with one ticket. Passes are compared by their
+	 * difference, so they may wrap around.
+	 */
+	private static final long stride1 = 1L << 32;
+
+	protected int getMinimumPriority() {
+		return priorityMinimum;
+	}
+
+	protected int getMaximumPriority() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The ready queue of a stride scheduler. Waiting threads are kept in the
+	 * <tt>PriorityQueue</tt> heap, ordered by lowest pass first. The queue
+	 * also tracks the thread it last dispatched, so that it can charge that
+	 * thread for the ticks it ran when it yields or blocks.
+	 */
+	protected class StrideQueue extends PriorityQueue {
+		StrideQueue() {
+			super(false);
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideThreadState state = (StrideThreadState) getThreadState(thread);
+			long now = Machine.timer().getTime();
+
+			advance(now);
+
+			if (state == running) {
+				// yielded or preempted: still active, just stopped running
+				charge(state, now);
+				running = null;
+			}
+			else {
+				join(state);
+			}
+
+			super.waitForAccess(thread);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideThreadState state = (StrideThreadState) getThreadState(thread);
+			long now = Machine.timer().getTime();
+
+			advance(now);
+			join(state);
+
+			running = state;
+			state.dispatchTime = now;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+
+			advance(now);
+
+			// the running thread did not come back, so it blocked or finished
+			if (running != null) {
+				charge(running, now);
+				leave(running);
+				running = null;
+			}
+
+			ThreadState next = pickNextThread();
+			if (next == null)
+				return null;
+
+			remove(next);
+
+			running = (StrideThreadState) next;
+			running.dispatchTime = now;
+
+			return next.thread;
+		}
+
+		/**
+		 * Remove a ready thread, which leaves the active set as if it had
+		 * blocked.
+		 */
+		public boolean remove(KThread thread) {
+			if (!super.remove(thread))
+				return false;
+
+			advance(Machine.timer().getTime());
+			leave((StrideThreadState) getThreadState(thread));
+
+			return true;
+		}
+
+		/**
+		 * Rescale the pass of a waiting thread whose tickets changed, keeping
+		 * its distance from the global pass proportional to its stride.
+		 */
+		void update(ThreadState state) {
+			StrideThreadState strideState = (StrideThreadState) state;
+
+			if (strideState.tickets != state.effectivePriority) {
+				advance(Machine.timer().getTime());
+
+				long remain = strideState.pass - globalPass;
+
+				activeTickets -= strideState.tickets;
+				strideState.pass = globalPass + retickets(strideState, remain);
+				activeTickets += strideState.tickets;
+			}
+
+			super.update(state);
+		}
+
+		boolean before(ThreadState a, ThreadState b) {
+			long difference = ((StrideThreadState) a).pass
+					- ((StrideThreadState) b).pass;
+
+			if (difference != 0)
+				return difference < 0;
+			else
+				return a.arrival < b.arrival;
+		}
+
+		/**
+		 * Advance the global pass to the specified time.
+		 */
+		private void advance(long now) {
+			if (activeTickets > 0)
+				globalPass += stride1 * (now - lastAdvance) / activeTickets;
+
+			lastAdvance = now;
+		}
+
+		/**
+		 * Make a thread active, resuming at the same distance from the global
+		 * pass as when it last left.
+		 */
+		private void join(StrideThreadState state) {
+			long remain = state.remain;
+
+			if (state.tickets == 0) {
+				state.tickets = state.effectivePriority;
+				state.stride = stride1 / state.tickets;
+			}
+			else if (state.tickets != state.effectivePriority) {
+				remain = retickets(state, remain);
+			}
+
+			activeTickets += state.tickets;
+			state.pass = globalPass + remain;
+		}
+
+		/**
+		 * Make a thread inactive, remembering its distance from the global
+		 * pass.
+		 */
+		private void leave(StrideThreadState state) {
+			state.remain = state.pass - globalPass;
+			activeTickets -= state.tickets;
+		}
+
+		/**
+		 * Advance the pass of a thread by its stride for every tick since it
+		 * was dispatched.
+		 */
+		private void charge(StrideThreadState state, long now) {
+			// tickets may have changed while the thread was running
+			if (state.tickets != state.effectivePriority) {
+				activeTickets -= state.tickets;
+				retickets(state, 0);
+				activeTickets += state.tickets;
+			}
+
+			state.pass += state.stride * (now - state.dispatchTime);
+			state.dispatchTime = now;
+		}
+
+		/**
+		 * Update a thread's tickets and stride to its effective priority, and
+		 * scale a distance from the global pass from the old stride to the
+		 * new one. The caller accounts for the change in active tickets.
+		 */
+		private long retickets(StrideThreadState state, long remain) {
+			long stride = stride1 / state.effectivePriority;
+
+			remain = (long) ((double) remain * stride / state.stride);
+
+			state.tickets = state.effectivePriority;
+			state.stride = stride;
+
+			return remain;
+		}
+
+		/** The thread this queue last dispatched, if it is still running. */
+		private StrideThreadState running = null;
+
+		/** The tickets of all ready threads, plus the running thread. */
+		private long activeTickets = 0;
+
+		private long globalPass = 0;
+
+		private long lastAdvance = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a stride scheduler.
+	 */
+	protected class StrideThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+		 * with the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public StrideThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/** The pass of the thread, valid while it is active. */
+		long pass = 0;
+
+		/** The distance of the pass from the global pass when it blocked. */
+		long remain = 0;
+
+		/** The tickets the ready queue last accounted for; 0 if never. */
+		int tickets = 0;
+
+		long stride;
+
+		/** When the thread was last dispatched or charged. */
+		long dispatchTime;
+	}
+}
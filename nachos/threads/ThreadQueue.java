@@ -90,6 +90,16 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Remove the specified thread from this queue without giving it access,
+	 * for example because it stopped waiting when a timeout expired. Does
+	 * nothing if the thread is not waiting on this queue.
+	 * 
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
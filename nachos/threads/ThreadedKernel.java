@@ -50,8 +50,17 @@ public class ThreadedKernel extends Kernel {
 		//Alarm.selftest();
 		//Condition2.selfTest();
 		//Communicator.selfTest();
+		//BufferedCommunicator.selfTest();
+		//ReadWriteLock.selfTest();
 		//Semaphore.selfTest();
 		//SynchList.selfTest();
+		//EDFScheduler.selfTest();
+
+		if (Config.getBoolean("KThread.benchmark", false))
+			KThread.pingPongBenchmark();
+
+		if (Config.getBoolean("StrideScheduler.benchmark", false))
+			StrideScheduler.fairnessBenchmark();
 
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
@@ -69,6 +78,7 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		LockProfiler.print();
 		Machine.halt();
 	}
 
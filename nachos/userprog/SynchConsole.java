@@ -104,15 +104,15 @@ public class SynchConsole {
 
 	private SerialConsole console;
 
-	private Lock readLock = new Lock();
+	private Lock readLock = new Lock("console readLock");
 
-	private Lock writeLock = new Lock();
+	private Lock writeLock = new Lock("console writeLock");
 
-	private Semaphore readWait = new Semaphore(0);
+	private Semaphore readWait = new Semaphore(0, "console readWait");
 
-	private Semaphore writeWait = new Semaphore(0);
+	private Semaphore writeWait = new Semaphore(0, "console writeWait");
 	
-	private Lock multiWriteLock = new Lock(); // Added from solution
+	private Lock multiWriteLock = new Lock("console multiWriteLock"); // Added from solution
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
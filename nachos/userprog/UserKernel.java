@@ -34,8 +34,8 @@ public class UserKernel extends ThreadedKernel {
 			}
 		});
 		
-		memoryLock = new Lock();
-		processLock = new Lock();
+		memoryLock = new Lock("memoryLock");
+		processLock = new Lock("processLock");
 
 		// Create virtual page addresses
 		for (int i = 0; i < Machine.processor().getNumPhysPages(); ++i)
@@ -62,7 +62,8 @@ public class UserProcess {
 
 		UserKernel.numRunningProcesses++;
 
-		new UThread(this).setName(name).fork();
+		processThread = new UThread(this).setName(name);
+		processThread.fork();
 
 		return true;
 	}
@@ -90,6 +91,11 @@ public class UserProcess {
 	 * without including the null terminator. If no null terminator is found,
 	 * returns <tt>null</tt>.
 	 *
+	 * <p>
+	 * The string is scanned in physical memory a page at a time, and reading
+	 * stops at the page holding the terminator. A string that lies within one
+	 * page is converted directly, without being copied first.
+	 *
 	 * @param vaddr the starting virtual address of the null-terminated string.
 	 * @param maxLength the maximum number of characters in the string, not
 	 * including the null terminator.
@@ -99,13 +105,48 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
+		byte[] memory = Machine.processor().getMemory();
+		byte[] bytes = null;
+		int length = 0;
+		int remaining = maxLength + 1;
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+		while (remaining > 0) {
+			int vpn = Processor.pageFromAddress(vaddr);
+			int off = Processor.offsetFromAddress(vaddr);
+			int transfer = Math.min(remaining, pageSize - off);
+			int ppn = pinVirtualPage(vpn, false);
 
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			if (ppn == -1) {
+				return null;
+			}
+
+			int start = ppn * pageSize + off;
+			int n = 0;
+			while (n < transfer && memory[start + n] != 0)
+				n++;
+			boolean found = n < transfer;
+
+			String s = null;
+			if (found && length == 0) {
+				s = new String(memory, start, n);
+			}
+			else if (found || transfer < remaining) {
+				if (bytes == null || length + n > bytes.length) {
+					int size = Math.max(length + n, Math.min(maxLength, 2 * length));
+					bytes = (bytes == null) ? new byte[size] : java.util.Arrays.copyOf(bytes, size);
+				}
+				System.arraycopy(memory, start, bytes, length, n);
+			}
+
+			unpinVirtualPage(vpn);
+
+			if (found) {
+				return (s != null) ? s : new String(bytes, 0, length + n);
+			}
+
+			vaddr += transfer;
+			length += n;
+			remaining -= transfer;
 		}
 
 		return null;
@@ -140,30 +181,7 @@ public class UserProcess {
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-		int totalTransferred = 0;
-
-		while (length > 0) {
-			int vpn = Processor.pageFromAddress(vaddr);
-			int off = Processor.offsetFromAddress(vaddr);
-			int transfer = Math.min(length, pageSize - off);
-			int ppn = pinVirtualPage(vpn, false);
-
-			if (ppn == -1) {
-				break;
-			}
-
-			System.arraycopy(memory, ppn * pageSize + off, data, offset, transfer);
-
-			unpinVirtualPage(vpn);
-
-			vaddr += transfer;
-			offset += transfer;
-			totalTransferred += transfer;
-			length -= transfer;
-		}
-
-		return totalTransferred;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -195,30 +213,228 @@ public class UserProcess {
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between virtual memory and an array, pinning at most
+	 * <tt>maxPinnedPages()</tt> pages at a time. The copy stops at the first
+	 * page that cannot be pinned, as if the range ended there.
+	 *
+	 * @param vaddr the first byte of virtual memory to copy.
+	 * @param data the array to copy to or from.
+	 * @param offset the first byte of the array to copy.
+	 * @param length the number of bytes to copy.
+	 * @param toMemory <tt>true</tt> to copy from the array into virtual
+	 * memory.
+	 * @return the number of bytes copied.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+			int length, boolean toMemory) {
+		if (length == 0)
+			return 0;
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+		if (vaddr < 0 || lastVPN < firstVPN)
+			return 0;
+
+		int copied = 0;
+		while (copied < length) {
+			int chunk = pinnedChunk(vaddr + copied, length - copied);
+			int actual = copyPinned(vaddr + copied, data, offset + copied,
+					chunk, toMemory);
+
+			copied += actual;
+			if (actual < chunk)
+				break;
+		}
+
+		return copied;
+	}
+
+	/**
+	 * Return how many of <i>length</i> bytes starting at <i>vaddr</i> fit in
+	 * <tt>maxPinnedPages()</tt> pages.
+	 */
+	private int pinnedChunk(int vaddr, int length) {
+		long room = (long) maxPinnedPages() * pageSize
+				- Processor.offsetFromAddress(vaddr);
+		return (int) Math.min(length, room);
+	}
+
+	/**
+	 * Copy between virtual memory and an array. Every page of the range is
+	 * pinned and translated first, stopping at the first page that cannot be,
+	 * and then each run of pages that are contiguous in physical memory is
+	 * copied with a single <tt>System.arraycopy()</tt>. Only the pages before
+	 * the first failure are copied, as if the range ended there.
+	 */
+	private int copyPinned(int vaddr, byte[] data, int offset, int length,
+			boolean toMemory) {
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		int[] ppns = new int[Math.min(lastVPN - firstVPN + 1, pageTable.length)];
+		int pinned = pinVirtualPages(firstVPN, ppns, toMemory);
+
 		byte[] memory = Machine.processor().getMemory();
-		int totalTransferred = 0;
+		int off = Processor.offsetFromAddress(vaddr);
+		int total = Math.min(length, pinned * pageSize - off);
+		int copied = 0;
+
+		for (int i = 0; i < pinned;) {
+			// extend the run while the next page follows this one in memory
+			int j = i + 1;
+			while (j < pinned && ppns[j] == ppns[j - 1] + 1)
+				j++;
+
+			int start = ppns[i] * pageSize + (i == 0 ? off : 0);
+			int transfer = Math.min(total - copied, (j - i) * pageSize
+					- (i == 0 ? off : 0));
+
+			if (toMemory) {
+				System.arraycopy(data, offset + copied, memory, start, transfer);
+				Machine.processor().memoryWritten(start, transfer);
+			}
+			else {
+				System.arraycopy(memory, start, data, offset + copied, transfer);
+			}
 
-		while (length > 0) {
-			int vpn = Processor.pageFromAddress(vaddr);
-			int off = Processor.offsetFromAddress(vaddr);
-			int transfer = Math.min(length, pageSize - off);
-			int ppn = pinVirtualPage(vpn, true);
+			copied += transfer;
+			i = j;
+		}
 
-			if (ppn == -1) {
+		unpinVirtualPages(firstVPN, pinned);
+
+		return copied;
+	}
+
+	/**
+	 * Transfer data directly between an open file and this process's virtual
+	 * memory, pinning at most <tt>maxPinnedPages()</tt> pages at a time. A
+	 * short transfer ends the operation.
+	 *
+	 * @param file the file to read or write.
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param length the number of bytes to transfer.
+	 * @param toMemory <tt>true</tt> to read from the file into virtual
+	 * memory, <tt>false</tt> to write virtual memory to the file.
+	 * @return the number of bytes transferred, or -1 if the range is invalid
+	 * (or read-only, when reading into it) before any bytes were transferred,
+	 * or if the file failed before any bytes were transferred.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length,
+			boolean toMemory) {
+		if (length == 0)
+			return 0;
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+		if (vaddr < 0 || lastVPN < firstVPN
+				|| lastVPN - firstVPN + 1 > pageTable.length)
+			return -1;
+
+		int transferred = 0;
+		while (transferred < length) {
+			int chunk = pinnedChunk(vaddr + transferred, length - transferred);
+			int actual = transferPinned(file, vaddr + transferred, chunk,
+					toMemory);
+
+			if (actual == -1)
+				return (transferred == 0) ? -1 : transferred;
+
+			transferred += actual;
+			if (actual < chunk)
+				break;
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Transfer data directly between an open file and virtual memory. The
+	 * whole range is pinned first, and then each run of pages that are
+	 * contiguous in physical memory is read or written with a single file
+	 * operation on main memory, so no intermediate buffer is needed.
+	 *
+	 * @return the number of bytes transferred, or -1 if part of the range is
+	 * invalid, or if the file failed before any bytes were transferred.
+	 */
+	private int transferPinned(OpenFile file, int vaddr, int length,
+			boolean toMemory) {
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		int[] ppns = new int[lastVPN - firstVPN + 1];
+		int pinned = pinVirtualPages(firstVPN, ppns, toMemory);
+		if (pinned < ppns.length) {
+			unpinVirtualPages(firstVPN, pinned);
+			return -1;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		int off = Processor.offsetFromAddress(vaddr);
+		int transferred = 0;
+
+		for (int i = 0; i < pinned;) {
+			int j = i + 1;
+			while (j < pinned && ppns[j] == ppns[j - 1] + 1)
+				j++;
+
+			int start = ppns[i] * pageSize + (i == 0 ? off : 0);
+			int transfer = Math.min(length - transferred, (j - i) * pageSize
+					- (i == 0 ? off : 0));
+
+			int actual = toMemory ? file.read(memory, start, transfer) : file
+					.write(memory, start, transfer);
+
+			if (actual == -1) {
+				if (transferred == 0)
+					transferred = -1;
 				break;
 			}
 
-			System.arraycopy(data, offset, memory, ppn * pageSize + off, transfer);
+			if (toMemory)
+				Machine.processor().memoryWritten(start, actual);
 
-			unpinVirtualPage(vpn);
+			transferred += actual;
+			if (actual < transfer)
+				break;
 
-			vaddr += transfer;
-			offset += transfer;
-			totalTransferred += transfer;
-			length -= transfer;
+			i = j;
 		}
 
-		return totalTransferred;
+		unpinVirtualPages(firstVPN, pinned);
+
+		return transferred;
+	}
+
+	/**
+	 * Pin consecutive virtual pages, stopping at the first page that cannot
+	 * be pinned.
+	 *
+	 * @param firstVPN the first page to pin.
+	 * @param ppns the array to fill with the physical page of each page; its
+	 * length is the number of pages to pin.
+	 * @param isUserWrite <tt>true</tt> if the pages will be written.
+	 * @return the number of pages pinned.
+	 */
+	private int pinVirtualPages(int firstVPN, int[] ppns, boolean isUserWrite) {
+		int pinned = 0;
+		while (pinned < ppns.length) {
+			int ppn = pinVirtualPage(firstVPN + pinned, isUserWrite);
+			if (ppn == -1)
+				break;
+			ppns[pinned++] = ppn;
+		}
+
+		return pinned;
+	}
+
+	private void unpinVirtualPages(int firstVPN, int count) {
+		for (int i = 0; i < count; i++)
+			unpinVirtualPage(firstVPN + i);
 	}
 
 	/**
@@ -399,9 +615,10 @@ public class UserProcess {
 			return -1;
 		}
 
-		Machine.halt();
+		// Shut down through the kernel, so that it can clean up and report
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 
 		return 0;
 	}
@@ -478,42 +695,56 @@ public class UserProcess {
 			return -1;
 		}
 
-		int totalRead = 0;
-		while (length > 0) {
-			int transfer = Math.min(length, ioBufferSize);
-			int actual = file.read(ioBuffer, 0, transfer);
+		// Read straight into the buffer's frames
+		return transferFile(file, bufferAddress, length, true);
+	}
 
-			// Check if bytes were actually read
-			if (actual <= 0) {
-				return -1;
-			}
+	/**
+	 * handle the write() system call.
+	 */
+	private int handleWrite(int descriptor, int bufferAddress, int length) {
+		// Check if valid file descriptor and count
+		if (descriptor < 0 || descriptor > fileDescriptorTable.length - 1 || length < 0) {
+			return -1;
+		}
 
-			// Write data into the buffer
-			actual = writeVirtualMemory(bufferAddress, ioBuffer, 0, actual);
+		// Check if entry in file descriptor table is valid
+		OpenFile file = fileDescriptorTable[descriptor];
+		if (file == null) {
+			return -1;
+		}
 
-			// Check if bytes were written
-			if (actual <= 0) {
-				return -1;
-			}
+		// Write straight from the buffer's frames
+		int totalWritten = transferFile(file, bufferAddress, length, false);
 
-			bufferAddress += actual;
-			length -= actual;
-			totalRead += actual;
+		return totalWritten != length ? -1 : totalWritten;
+	}
 
-			if (actual < transfer) {
-				break;
-			}
-		}
+	/**
+	 * handle the readv() system call.
+	 */
+	private int handleReadv(int descriptor, int iovAddress, int count) {
+		return handleVectored(descriptor, iovAddress, count, true);
+	}
 
-		return totalRead;
+	/**
+	 * handle the writev() system call.
+	 */
+	private int handleWritev(int descriptor, int iovAddress, int count) {
+		return handleVectored(descriptor, iovAddress, count, false);
 	}
 
 	/**
-	 * handle the write() system call.
+	 * Read into or write from each buffer of an array of <tt>struct
+	 * iovec</tt>s in turn, with the same results as <tt>read()</tt> or
+	 * <tt>write()</tt> of all of them concatenated. A short read ends the
+	 * transfer, and so does an invalid buffer after the first.
 	 */
-	private int handleWrite(int descriptor, int bufferAddress, int length) {
+	private int handleVectored(int descriptor, int iovAddress, int count,
+			boolean toMemory) {
 		// Check if valid file descriptor and count
-		if (descriptor < 0 || descriptor > fileDescriptorTable.length - 1 || length < 0) {
+		if (descriptor < 0 || descriptor > fileDescriptorTable.length - 1
+				|| count < 0 || count > maxIovecs) {
 			return -1;
 		}
 
@@ -523,29 +754,41 @@ public class UserProcess {
 			return -1;
 		}
 
-		int totalWritten = 0;
-		int remaining = length;
-		while (remaining > 0) {
-			int transfer = Math.min(remaining, ioBufferSize);
-			int actual = readVirtualMemory(bufferAddress, ioBuffer, 0, transfer);
+		byte[] iov = new byte[count * iovecSize];
+		if (readVirtualMemory(iovAddress, iov) != iov.length) {
+			return -1;
+		}
+
+		// Check every length before transferring anything
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			int n = Lib.bytesToInt(iov, i * iovecSize + 4);
+			if (n < 0) {
+				return -1;
+			}
+			length += n;
+		}
+		if (length > Integer.MAX_VALUE) {
+			return -1;
+		}
 
-			actual = file.write(ioBuffer, 0, actual);
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			int base = Lib.bytesToInt(iov, i * iovecSize);
+			int n = Lib.bytesToInt(iov, i * iovecSize + 4);
 
-			// Check if bytes were actually written
+			int actual = transferFile(file, base, n, toMemory);
 			if (actual == -1) {
-				return totalWritten == 0 ? -1 : totalWritten;
+				return total == 0 ? -1 : total;
 			}
 
-			bufferAddress += actual;
-			remaining -= actual;
-			totalWritten += actual;
-
-			if (actual < transfer) {
+			total += actual;
+			if (actual < n) {
 				break;
 			}
 		}
 
-		return totalWritten != length ? -1 : totalWritten;
+		return (!toMemory && total != length) ? -1 : total;
 	}
 
 	/**
@@ -638,7 +881,8 @@ public class UserProcess {
 	 * handle the join() system call.
 	 */
 	private int handleJoin(int pid, int statusAddress) {
-		if (childProcesses.get(pid) == null) {
+		UserProcess child = childProcesses.get(pid);
+		if (child == null) {
 			return -1;
 		}
 
@@ -648,7 +892,7 @@ public class UserProcess {
 
 		// Put current process thread to sleep until child (specified by pid arg) has exited
 		while (!childProcessesExitStatus.containsKey(pid))
-			childFinished.sleep();
+			childFinished.sleep(child.processThread);
 
 		Integer status = childProcessesExitStatus.get(pid);
 
@@ -755,6 +999,16 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 *
 	 * @param syscall the syscall number.
@@ -776,6 +1030,10 @@ public class UserProcess {
 				return handleRead(a0, a1, a2);
 			case syscallWrite:
 				return handleWrite(a0, a1, a2);
+			case syscallReadv:
+				return handleReadv(a0, a1, a2);
+			case syscallWritev:
+				return handleWritev(a0, a1, a2);
 			case syscallUnlink:
 				return handleUnlink(a0);
 			case syscallClose:
@@ -822,6 +1080,20 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Return the file open on the specified file descriptor.
+	 *
+	 * @param descriptor the file descriptor.
+	 * @return the open file, or <tt>null</tt> if the descriptor is invalid or
+	 * not open.
+	 */
+	protected OpenFile getOpenFile(int descriptor) {
+		if (descriptor < 0 || descriptor > fileDescriptorTable.length - 1)
+			return null;
+
+		return fileDescriptorTable[descriptor];
+	}
+
 	protected int pinVirtualPage(int vpn, boolean isUserWrite) {
 		if (vpn < 0 || vpn >= pageTable.length)
 			return -1;
@@ -849,6 +1121,16 @@ public class UserProcess {
 		// conditionVariable.wakeAll();
 	}
 
+	/**
+	 * Return the most pages that one transfer between virtual memory and the
+	 * kernel pins at once. Longer transfers are done in pieces.
+	 *
+	 * @return the limit, which is at least 1.
+	 */
+	protected int maxPinnedPages() {
+		return pageTable.length;
+	}
+
 	// The number of pages in the program's stack
 	protected final int stackPages = 8;
 
@@ -862,10 +1144,15 @@ public class UserProcess {
 
 	protected static final int maxFiles = 16;
 
+	protected static final int maxIovecs = 64;
+
+	/** The size of a <tt>struct iovec</tt>: a buffer address and a length. */
+	private static final int iovecSize = 8;
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14;
 
 	// The program being run by this process
 	protected Coff coff;
@@ -895,9 +1182,5 @@ public class UserProcess {
 
 	private OpenFile[] fileDescriptorTable = new OpenFile[maxFiles];
 
-	private byte[] ioBuffer = new byte[ioBufferSize];
-
-	private static final int ioBufferSize = 1024;
-
 	private KThread processThread;
 }
\ No newline at end of file
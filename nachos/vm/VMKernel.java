@@ -34,10 +34,11 @@ public class VMKernel extends UserKernel {
 			ipt[i] = new PageFrame(null);
 		}
 		
-		iptLock = new Lock();
-		swapLock = new Lock();
-		victimLock = new Lock();
-		pinLock = new Lock();
+		iptLock = new ReadWriteLock("iptLock");
+		swapLock = new Lock("swapLock");
+		victimLock = new Lock("victimLock");
+		pinLock = new Lock("pinLock");
+		unpinned = new Condition2(pinLock, "unpinned");
 
 		swap = ThreadedKernel.fileSystem.open("swap", true);
 	}
@@ -65,18 +66,56 @@ public class VMKernel extends UserKernel {
 		super.terminate();
 	}
 
+	/**
+	 * Pin a frame, so that it is not chosen for eviction until it is
+	 * unpinned. A frame may be pinned more than once.
+	 *
+	 * @param ppn the frame to pin.
+	 */
 	public static void pinPage(int ppn) {
-		iptLock.acquire();
-		numOfPinnedPages++;
-		++(ipt[ppn].pinCount);
-		iptLock.release();
+		iptLock.acquireWrite();
+		if (ipt[ppn].pinCount++ == 0)
+			numOfPinnedPages++;
+		iptLock.releaseWrite();
 	}
 
+	/**
+	 * Undo one <tt>pinPage()</tt> of a frame, waking any page faults that
+	 * are waiting for a frame they can evict.
+	 *
+	 * @param ppn the frame to unpin.
+	 */
 	public static void unpinPage(int ppn) {
-		iptLock.acquire();
-		numOfPinnedPages--;
-		--(ipt[ppn].pinCount);
-		iptLock.release();
+		iptLock.acquireWrite();
+		Lib.assertTrue(ipt[ppn].pinCount > 0);
+		boolean freed = (--ipt[ppn].pinCount == 0);
+		if (freed)
+			numOfPinnedPages--;
+		iptLock.releaseWrite();
+
+		if (freed) {
+			pinLock.acquire();
+			unpinned.wakeAll();
+			pinLock.release();
+		}
+	}
+
+	/**
+	 * Wait until some frame is not pinned. Called with <tt>iptLock</tt> held
+	 * for writing by a page fault that must evict a frame; the lock is
+	 * released while waiting.
+	 */
+	static void waitForUnpinnedFrame() {
+		while (numOfPinnedPages == ipt.length) {
+			iptLock.releaseWrite();
+
+			pinLock.acquire();
+			if (numOfPinnedPages == ipt.length)
+				unpinned.sleep();
+			pinLock.release();
+
+			iptLock.acquireWrite();
+		}
 	}
 
 	//public static TranslationEntry[] TLBTable;
@@ -85,6 +124,10 @@ public class VMKernel extends UserKernel {
 		
 		public TranslationEntry entry;  // Reference 
 		public int pinCount;
+
+		// The file mapping this frame holds a page of, if any
+		VMProcess.Mapping mapping;
+		int mappedPage;
 		
 		
 		public PageFrame(TranslationEntry entry){
@@ -103,9 +146,15 @@ public class VMKernel extends UserKernel {
 	
 	static int justWritten = -1;
 
+	// The number of frames that are pinned at least once
 	public static int numOfPinnedPages;
 	
-	public static Lock iptLock, swapLock, victimLock, pinLock;
+	public static ReadWriteLock iptLock;
+
+	public static Lock swapLock, victimLock, pinLock;
+
+	// Signalled on pinLock whenever a frame stops being pinned
+	private static Condition2 unpinned;
 
 	public static OpenFile swap;
 	
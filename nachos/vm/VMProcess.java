@@ -1,6 +1,8 @@
 package nachos.vm;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -18,6 +20,8 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		tlbFlags = new int[Machine.processor().getTLBSize()];
 	}
 
 	/**
@@ -28,19 +32,9 @@ public class VMProcess extends UserProcess {
 		//System.out.println("Savestate");
 		super.saveState();
 
-		TranslationEntry entry;
 		// Sync all entries and flush
-		for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-			entry = Machine.processor().readTLBEntry(i);
-
-			if (entry.valid) {
-				syncTLBEntry(entry);
-
-				// Invalidate the entry
-				entry.valid = false;
-				Machine.processor().writeTLBEntry(i, entry);
-			}
-		}
+		syncTLBToPageTable();
+		Machine.processor().invalidateTLB();
 	}
 
 	/**
@@ -87,6 +81,12 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		// Write back and drop every file mapping, which leaves only the pages
+		// that loadSections() set up
+		for (Mapping mapping : new HashSet<Mapping>(vpnMappingMap.values()))
+			mapping.unmap();
+		pageTable = Arrays.copyOf(pageTable, numPages);
+
 		// Set process for all pages in ipt to null
 //		VMKernel.iptLock.acquire(); //  TODO release physical pages
 		// Go through every physical page, and every page owned by this process, set to null
@@ -130,51 +130,135 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>char *mmap(int fd, int offset, int length);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  munmap(char *address);</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1, a2);
+		case syscallMunmap:
+			return handleMunmap(a0);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * handle the mmap() system call. The mapping gets its own handle on the
+	 * file, so it outlives <tt>close()</tt>, and is placed in the first gap
+	 * of unused pages above the stack, growing the page table if there is
+	 * none. No page is read until it is first touched.
+	 */
+	private int handleMmap(int descriptor, int offset, int length) {
+		OpenFile file = getOpenFile(descriptor);
+
+		// Only files on disk can be mapped, from a page boundary
+		if (file == null || file.getFileSystem() == null || offset < 0
+				|| offset % pageSize != 0 || length <= 0) {
+			return -1;
+		}
+
+		int pages = Lib.divRoundUp(length, pageSize);
+
+		int firstVPN = numPages;
+		for (int vpn = numPages; vpn < firstVPN + pages && vpn < pageTable.length; ++vpn) {
+			if (pageTable[vpn] != null)
+				firstVPN = vpn + 1;
+		}
+
+		// Keep every mapped address positive
+		if (firstVPN > Integer.MAX_VALUE / pageSize - pages) {
+			return -1;
+		}
+
+		OpenFile mapped = file.getFileSystem().open(file.getName(), false);
+		if (mapped == null) {
+			return -1;
+		}
+
+		if (firstVPN + pages > pageTable.length)
+			pageTable = Arrays.copyOf(pageTable, firstVPN + pages);
+
+		Mapping mapping = new Mapping(mapped, offset, length, firstVPN, pages);
+		for (int vpn = firstVPN; vpn < firstVPN + pages; ++vpn) {
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+			vpnMappingMap.put(vpn, mapping);
+		}
+
+		return Processor.makeAddress(firstVPN, 0);
+	}
+
+	/**
+	 * handle the munmap() system call.
+	 */
+	private int handleMunmap(int address) {
+		int vpn = Processor.pageFromAddress(address);
+		Mapping mapping = vpnMappingMap.get(vpn);
+
+		// Must be the address mmap() returned
+		if (mapping == null || mapping.firstVPN != vpn
+				|| Processor.offsetFromAddress(address) != 0) {
+			return -1;
+		}
+
+		mapping.unmap();
+		return 0;
+	}
+
 	private void handleTLBMiss() {
-		TranslationEntry entry;
 		int index = -1;
 		// Synch tlb here
 		//syncTLBTO, dirty and used
-		TranslationEntry tmpEntry;
-		for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-			tmpEntry = Machine.processor().readTLBEntry(i);
-			if (tmpEntry.valid){
-				// write from tlb to process
-				VMKernel.iptLock.acquire();
-				VMKernel.ipt[tmpEntry.ppn].entry.used = tmpEntry.used;
-				VMKernel.ipt[tmpEntry.ppn].entry.dirty = tmpEntry.dirty;
-				VMKernel.iptLock.release();
-			}
-		}
+		syncTLBToIPT();
 		
 		// Looking for an invalid entry
-		for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-			entry = Machine.processor().readTLBEntry(i);
-			if (entry.valid == false){
+		for (int i = 0; i < tlbFlags.length; ++i) {
+			if ((tlbFlags[i] & Processor.tlbFlagValid) == 0){
 				index = i;
 				break;
 			}
 		}
-		// No invalid entries so only process entries right now, randomly evict one, and sync to the page table
+		// No invalid entries so only process entries right now, randomly evict one
+		// The victim was synced to the page table above, and is overwritten below
 		if (index == -1) {
 			// Get random index, and make that the victim
-			index = Lib.random(Machine.processor().getTLBSize());
-			TranslationEntry victim = Machine.processor().readTLBEntry(index);
-
-			// write from tlb to process
-			VMKernel.iptLock.acquire();
-			VMKernel.ipt[victim.ppn].entry.used = victim.used;
-			VMKernel.ipt[victim.ppn].entry.dirty = victim.dirty;
-			VMKernel.iptLock.release();
-
-			// Invalidate the entry
-			victim.valid = false;
-			Machine.processor().writeTLBEntry(index, victim);
+			index = Lib.random(tlbFlags.length);
 		}
 
 		// Find the PTE of the TLB Miss
 		int missVAddress = Machine.processor().readRegister(Processor.regBadVAddr);
 		int missVPN = Processor.pageFromAddress(missVAddress);
+
+		// Outside the address space, or in a file mapping that was removed
+		if (missVPN >= pageTable.length || pageTable[missVPN] == null) {
+			super.handleException(Processor.exceptionAddressError);
+			return;
+		}
+
 		TranslationEntry tlbPTE = pageTable[missVPN];
 		Machine.processor().writeTLBEntry(index, tlbPTE.valid ? tlbPTE : handlePageFault(tlbPTE));
 	}
@@ -191,15 +275,20 @@ public class VMProcess extends UserProcess {
 		int freePageIndex = -1;
 
 		// Go through all entries of the ipt and try to look for a null val
-		VMKernel.iptLock.acquire();
+		// Once memory is full this finds nothing, so only upgrade to claim a page
+		VMKernel.iptLock.acquireUpgradeable();
 		for (int i = 0; i < VMKernel.ipt.length; ++i) {
 			if (VMKernel.ipt[i].entry == null) {
 				freePageIndex = i;
+				VMKernel.iptLock.upgrade();
 				VMKernel.ipt[i].entry=new TranslationEntry(-3,-3,false,false,false,false); // Defeat check
 				break;
 			}
 		}
-		VMKernel.iptLock.release();
+		if (freePageIndex != -1)
+			VMKernel.iptLock.releaseWrite();
+		else
+			VMKernel.iptLock.releaseUpgradeable();
 
 
 		if (freePageIndex != -1) {
@@ -208,27 +297,15 @@ public class VMProcess extends UserProcess {
 		} else {
 			//No free memory, need to evict a page
 		    // Sync TLB entries
-			for(int i = 0; i < Machine.processor().getTLBSize(); ++i){
-				TranslationEntry syncEntry = Machine.processor().readTLBEntry(i);
-
-				if(syncEntry.valid){
-					// write from tlb to process
-					VMKernel.iptLock.acquire();
-					VMKernel.ipt[syncEntry.ppn].entry.used = syncEntry.used;
-					VMKernel.ipt[syncEntry.ppn].entry.dirty = syncEntry.dirty;
-					VMKernel.iptLock.release();
-
-					// Invalidate the entry
-					//Machine.processor().writeTLBEntry(i, syncEntry);
-				}
-			}
+			syncTLBToIPT();
 
 			// Select a victim for replacement - Clock algorithm
 			TranslationEntry toEvict;
-			VMKernel.iptLock.acquire();
+			VMKernel.iptLock.acquireWrite();
+			// A pinned frame is never evicted, so wait if they all are
+			VMKernel.waitForUnpinnedFrame();
 			while (true) {
-				// TODO pinPage edge case
-				if (VMKernel.ipt[VMKernel.victim].pinCount == 0 && VMKernel.victim!=0) { // Check for null defeats nullptr
+				if (VMKernel.ipt[VMKernel.victim].pinCount == 0) {
 					// Check for null defeats nullptr
 					if (VMKernel.ipt[VMKernel.victim].entry.used == true) {
 						VMKernel.ipt[VMKernel.victim].entry.used = false;
@@ -241,10 +318,13 @@ public class VMProcess extends UserProcess {
 				VMKernel.victimLock.release();
 			}
 			toEvict = VMKernel.ipt[VMKernel.victim].entry;      // Ref to Victim in the physical page table entry
+			Mapping evictedMapping = VMKernel.ipt[VMKernel.victim].mapping;
+			int evictedPage = VMKernel.ipt[VMKernel.victim].mappedPage;
+			VMKernel.ipt[VMKernel.victim].mapping = null;
 			//teToString(toEvict);
 
 			tlbEntry = new TranslationEntry(vpn, toEvict.ppn, true, false, false, false);
-			VMKernel.iptLock.release();
+			VMKernel.iptLock.releaseWrite();
 
 			// Still increment clock on page replacement
 			VMKernel.victimLock.acquire();
@@ -260,7 +340,11 @@ public class VMProcess extends UserProcess {
 			
 			
 			// Handle swap out if necessary
-			if (toEvict.dirty) {       // Only write to disk if the page is dirty
+			if (evictedMapping != null) {
+				// A page of a mapped file is written back to the file instead
+				if (toEvict.dirty)
+					evictedMapping.writeBack(evictedPage, toEvict.ppn);
+			} else if (toEvict.dirty) {       // Only write to disk if the page is dirty
 				//System.out.println("Swap out page " + toEvict.ppn);
 				// Search for free swap page, create a new one if you can't find one
 				VMKernel.swapLock.acquire();
@@ -295,19 +379,16 @@ public class VMProcess extends UserProcess {
 			toEvict.valid=false;
 			
 			// If victim page is in TLB, invalidate it
-			for( int i = 0; i < Machine.processor().getTLBSize(); ++i ){
-				TranslationEntry et = Machine.processor().readTLBEntry(i);
-				if(et.valid){
-						if(et.vpn == toEvict.vpn){
-							Machine.processor().writeTLBEntry(i,new TranslationEntry(0,-1,false,false,false,false));
-							break;
-						}
-				}
-			}
+			Machine.processor().invalidateTLBEntry(toEvict.vpn);
 
 		}
 
 
+		// A page of a mapped file always comes from the file
+		Mapping mapping = vpnMappingMap.get(vpn);
+		if (mapping != null)
+			return mapping.pageIn(vpn - mapping.firstVPN, tlbEntry.ppn);
+
 		// Check if the TLB TranslationEntry is dirty - If so, Swap In, already checks for
 		if (entry.ppn == -1) {
 			// Check vpn belongs to a CoffSection
@@ -347,41 +428,151 @@ public class VMProcess extends UserProcess {
 			}
 		}
 
-		VMKernel.iptLock.acquire();
+		// The frame has new contents, whichever way it was filled
+		Machine.processor().memoryWritten(tlbEntry.ppn * pageSize, pageSize);
+
+		VMKernel.iptLock.acquireWrite();
 		VMKernel.ipt[tlbEntry.ppn].entry.used = tlbEntry.used;
 		VMKernel.ipt[tlbEntry.ppn].entry.dirty = tlbEntry.dirty;
-		VMKernel.iptLock.release();
+		VMKernel.iptLock.releaseWrite();
 		//teToString(tlbEntry);
 
 		return tlbEntry;
 	}
 	
+	/**
+	 * Fault the page in if it is not resident, and pin its frame so that it
+	 * stays resident until <tt>unpinVirtualPage()</tt>.
+	 */
 	protected int pinVirtualPage(int vpn, boolean isUserWrite) {
-		return 0;
+		if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (isUserWrite && entry.readOnly)
+			return -1;
+
+		// Only the running process has entries in the TLB, which are newer
+		// than its page table
+		boolean running = (UserKernel.currentProcess() == this);
+		if (running)
+			syncTLBToPageTable();
+
+		int ppn;
+		while (true) {
+			if (!entry.valid)
+				installEntry(entry, handlePageFault(entry));
+
+			ppn = entry.ppn;
+			VMKernel.pinPage(ppn);
+
+			// Pinning can block, so the page may have been evicted meanwhile
+			if (entry.valid && entry.ppn == ppn)
+				break;
+
+			VMKernel.unpinPage(ppn);
+		}
+
+		entry.used = true;
+		if (isUserWrite) {
+			entry.dirty = true;
+			// A TLB entry would put back its own dirty bit when synced
+			if (running)
+				Machine.processor().invalidateTLBEntry(vpn);
+		}
+
+		return ppn;
 	}
 
 	protected void unpinVirtualPage(int vpn) {
-		// TODO unpin the physical page
-		// TODO wake up the sleeping threads on edge case
-		// conditionVariable.wakeAll();
+		VMKernel.unpinPage(pageTable[vpn].ppn);
+	}
+
+	/**
+	 * Pin at most a quarter of physical memory for one transfer, so that
+	 * several processes transferring at once still leave frames to evict.
+	 */
+	protected int maxPinnedPages() {
+		return Math.max(1, Machine.processor().getNumPhysPages() / 4);
+	}
+
+	/**
+	 * Make a page table entry hold the translation that
+	 * <tt>handlePageFault()</tt> returned for it, and make its frame refer to
+	 * it.
+	 */
+	private void installEntry(TranslationEntry entry, TranslationEntry loaded) {
+		// A page of a mapped file was installed by pageIn()
+		if (loaded == entry)
+			return;
+
+		entry.ppn = loaded.ppn;
+		entry.valid = true;
+		entry.used = loaded.used;
+		entry.dirty = loaded.dirty;
+
+		VMKernel.iptLock.acquireWrite();
+		VMKernel.ipt[entry.ppn].entry = entry;
+		VMKernel.iptLock.releaseWrite();
+	}
+
+	/**
+	 * Copy every valid TLB entry into the page table and the IPT, leaving the
+	 * TLB as it is.
+	 */
+	private void syncTLBToPageTable() {
+		Machine.processor().syncTLBInto(tlbFlags);
+		for (int i = 0; i < tlbFlags.length; ++i) {
+			if ((tlbFlags[i] & Processor.tlbFlagValid) != 0)
+				syncTLBEntry(i, tlbFlags[i]);
+		}
+	}
+
+	/*
+	 * Write the used and dirty bits of every valid TLB entry back to the IPT
+	 * Leaves the flags of the whole TLB in tlbFlags
+	 */
+	private void syncTLBToIPT() {
+		Processor processor = Machine.processor();
+
+		processor.syncTLBInto(tlbFlags);
+		// Take the lock once for the whole TLB, and only if there is anything to copy
+		boolean locked = false;
+		for (int i = 0; i < tlbFlags.length; ++i) {
+			if ((tlbFlags[i] & Processor.tlbFlagValid) != 0) {
+				if (!locked) {
+					VMKernel.iptLock.acquireWrite();
+					locked = true;
+				}
+				// write from tlb to process
+				TranslationEntry iptEntry = VMKernel.ipt[processor.getTLBPpn(i)].entry;
+				iptEntry.used = (tlbFlags[i] & Processor.tlbFlagUsed) != 0;
+				iptEntry.dirty = (tlbFlags[i] & Processor.tlbFlagDirty) != 0;
+			}
+		}
+		if (locked)
+			VMKernel.iptLock.releaseWrite();
 	}
 
 	/*
 	 * Sync IPT and Page Table from TLB Entry
 	 */
-	public void syncTLBEntry(TranslationEntry tlbEntry) {
-		TranslationEntry des = pageTable[tlbEntry.vpn];
+	public void syncTLBEntry(int number, int flags) {
+		Processor processor = Machine.processor();
+		int vpn = processor.getTLBVpn(number);
+		int ppn = processor.getTLBPpn(number);
+		TranslationEntry des = pageTable[vpn];
 
 		// Sync Page Table with TLB entry
-		des.vpn = tlbEntry.vpn;
-		des.ppn = tlbEntry.ppn;
-		des.valid = tlbEntry.valid;
-		des.readOnly = tlbEntry.readOnly;
-		des.used = tlbEntry.used;
-		des.dirty = tlbEntry.dirty;
+		des.vpn = vpn;
+		des.ppn = ppn;
+		des.valid = (flags & Processor.tlbFlagValid) != 0;
+		des.readOnly = (flags & Processor.tlbFlagReadOnly) != 0;
+		des.used = (flags & Processor.tlbFlagUsed) != 0;
+		des.dirty = (flags & Processor.tlbFlagDirty) != 0;
 
 		// Sync IPT entry with Page Table
-		VMKernel.ipt[tlbEntry.ppn].entry = pageTable[tlbEntry.vpn];
+		VMKernel.ipt[ppn].entry = pageTable[vpn];
 	}
 
 	public static void teToString(TranslationEntry t){
@@ -396,9 +587,116 @@ public class VMProcess extends UserProcess {
 	}
 	
 	
+	/**
+	 * A file mapped into the address space by <tt>mmap()</tt>. Its pages are
+	 * read from the file when they are first touched, and again whenever they
+	 * are touched after being evicted. A dirty page is written back to the
+	 * file when it is evicted or unmapped, so mapped pages never use swap.
+	 */
+	class Mapping {
+		Mapping(OpenFile file, int offset, int length, int firstVPN, int numPages) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+		}
+
+		/**
+		 * Read a page of the mapping into a frame, and make the frame hold it.
+		 * Bytes past the end of the file read as zeros.
+		 *
+		 * @return the page table entry of the page, now valid.
+		 */
+		TranslationEntry pageIn(int page, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int bytes = Math.min(pageSize, length - page * pageSize);
+
+			int read = file.read(offset + page * pageSize, memory, ppn * pageSize, bytes);
+			for (int i = Math.max(read, 0); i < pageSize; ++i)
+				memory[ppn * pageSize + i] = 0;
+			Machine.processor().memoryWritten(ppn * pageSize, pageSize);
+
+			TranslationEntry entry = pageTable[firstVPN + page];
+			entry.ppn = ppn;
+			entry.valid = true;
+			entry.used = false;
+			entry.dirty = false;
+
+			VMKernel.iptLock.acquireWrite();
+			PageFrame frame = VMKernel.ipt[ppn];
+			frame.entry = entry;
+			frame.mapping = this;
+			frame.mappedPage = page;
+			VMKernel.iptLock.releaseWrite();
+
+			return entry;
+		}
+
+		/**
+		 * Write a page of the mapping from the frame holding it back to the
+		 * file. Writing past the end of the file extends it.
+		 */
+		void writeBack(int page, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int bytes = Math.min(pageSize, length - page * pageSize);
+
+			file.write(offset + page * pageSize, memory, ppn * pageSize, bytes);
+		}
+
+		/**
+		 * Write back the dirty pages, free the frames holding the mapping and
+		 * remove it from the address space.
+		 */
+		void unmap() {
+			// Bring the dirty bits of pages in the TLB up to date
+			syncTLBToIPT();
+
+			for (int page = 0; page < numPages; ++page) {
+				TranslationEntry entry = pageTable[firstVPN + page];
+				if (entry.valid && entry.dirty)
+					writeBack(page, entry.ppn);
+			}
+
+			VMKernel.iptLock.acquireWrite();
+			for (int page = 0; page < numPages; ++page) {
+				int vpn = firstVPN + page;
+				TranslationEntry entry = pageTable[vpn];
+
+				if (entry.valid && VMKernel.ipt[entry.ppn].entry == entry) {
+					VMKernel.ipt[entry.ppn].entry = null;
+					VMKernel.ipt[entry.ppn].mapping = null;
+				}
+				Machine.processor().invalidateTLBEntry(vpn);
+
+				pageTable[vpn] = null;
+				vpnMappingMap.remove(vpn);
+			}
+			VMKernel.iptLock.releaseWrite();
+
+			file.close();
+		}
+
+		private OpenFile file;
+
+		/** The byte of the file at the start of the mapping. */
+		private int offset;
+
+		private int length;
+
+		int firstVPN, numPages;
+	}
+
+	/** Scratch space for the flags of the TLB entries. */
+	private int[] tlbFlags;
+
 	private HashMap<Integer, CoffSection> vpnCoffMap = new HashMap<>();
 
 	private HashMap<Integer,Integer> swapTable = new HashMap<Integer,Integer>();
+
+	private HashMap<Integer, Mapping> vpnMappingMap = new HashMap<Integer, Mapping>();
+
+	private static final int syscallMmap = 10, syscallMunmap = 15;
 	
 	private static final int pageSize = Processor.pageSize;
 